@@ -0,0 +1,122 @@
+package com.maxwai.nclientv3;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.widget.Toolbar;
+
+import com.maxwai.nclientv3.async.downloader.DownloadStats;
+import com.maxwai.nclientv3.components.activities.GeneralActivity;
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.AppExecutors;
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Shows the counters of the download engine, refreshed every second
+ */
+public class DownloadStatsActivity extends GeneralActivity {
+    private static final long REFRESH_MS = 1000;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private TextView report;
+    private ActivityResultLauncher<String> SAVE_REPORT;
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            report.setText(DownloadStats.getInstance().report());
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        registerActivities();
+        setContentView(R.layout.activity_download_stats);
+        Toolbar toolbar = findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        ActionBar actionBar = Objects.requireNonNull(getSupportActionBar());
+        actionBar.setDisplayHomeAsUpEnabled(true);
+        actionBar.setDisplayShowTitleEnabled(true);
+        actionBar.setTitle(R.string.download_stats);
+        report = findViewById(R.id.report);
+    }
+
+    private void registerActivities() {
+        SAVE_REPORT = registerForActivityResult(new ActivityResultContracts.CreateDocument("text/plain") {
+            @NonNull
+            @Override
+            public Intent createIntent(@NonNull Context context, @NonNull String input) {
+                Intent i = super.createIntent(context, input);
+                i.setType("text/plain");
+                return i;
+            }
+        }, selectedFile -> {
+            if (selectedFile == null) return;
+            AppExecutors.io().execute(() -> {
+                boolean ok = false;
+                try (OutputStream outputStream = getContentResolver().openOutputStream(selectedFile);
+                     Writer writer = new BufferedWriter(new OutputStreamWriter(Objects.requireNonNull(outputStream)))) {
+                    DownloadStats.getInstance().writeTo(writer);
+                    ok = true;
+                } catch (Exception e) {
+                    LogUtility.e("Error saving download stats", e);
+                }
+                boolean finalOk = ok;
+                runOnUiThread(() ->
+                    Toast.makeText(this, finalOk ? R.string.export_finished : R.string.failed, Toast.LENGTH_SHORT).show()
+                );
+            });
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+
+    @Override
+    protected void onPause() {
+        handler.removeCallbacks(refresh);
+        super.onPause();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.download_stats, menu);
+        Global.setTint(this, menu.findItem(R.id.save_report).getIcon());
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            finish();
+            return true;
+        } else if (item.getItemId() == R.id.save_report) {
+            SAVE_REPORT.launch(String.format("NClientv3_Downloads_%s.txt", new SimpleDateFormat("yyMMdd_HHmmss", Locale.getDefault()).format(new Date())));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
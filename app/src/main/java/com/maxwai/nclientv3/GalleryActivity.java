@@ -328,7 +328,7 @@ public class GalleryActivity extends BaseActivity {
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
                 File file = new File(Global.TORRENTFOLDER, gallery.getId() + ".torrent");
-                Utility.writeStreamToFile(response.body().byteStream(), file);
+                Utility.writeSourceToFile(response.body().source(), file, false, null, false);
                 Intent intent = new Intent(Intent.ACTION_VIEW);
                 Uri torrentUri;
                 torrentUri = FileProvider.getUriForFile(GalleryActivity.this, GalleryActivity.this.getPackageName() + ".provider", file);
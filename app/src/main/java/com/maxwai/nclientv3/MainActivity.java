@@ -17,6 +17,7 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.Toast;
 
 import androidx.activity.OnBackPressedCallback;
 import androidx.annotation.NonNull;
@@ -37,6 +38,7 @@ import com.google.android.material.navigation.NavigationView;
 import com.google.android.material.snackbar.Snackbar;
 import com.maxwai.nclientv3.adapters.ListAdapter;
 import com.maxwai.nclientv3.api.InspectorV3;
+import com.maxwai.nclientv3.api.PagePrefetcher;
 import com.maxwai.nclientv3.api.components.Gallery;
 import com.maxwai.nclientv3.api.components.GenericGallery;
 import com.maxwai.nclientv3.api.components.Ranges;
@@ -50,6 +52,7 @@ import com.maxwai.nclientv3.api.enums.TagType;
 import com.maxwai.nclientv3.async.ScrapeTags;
 import com.maxwai.nclientv3.async.VersionChecker;
 import com.maxwai.nclientv3.async.database.Queries;
+import com.maxwai.nclientv3.async.downloader.BulkDownloadWorker;
 import com.maxwai.nclientv3.async.downloader.DownloadGalleryV2;
 import com.maxwai.nclientv3.components.activities.BaseActivity;
 import com.maxwai.nclientv3.components.views.PageSwitcher;
@@ -93,6 +96,7 @@ public class MainActivity extends BaseActivity
     private final InspectorV3.InspectorResponse addDataset = new MainInspectorResponse() {
         @Override
         public void onSuccess(List<GenericGallery> galleries) {
+            lastPageStart = adapter.getItemCount();
             adapter.addGalleries(galleries);
         }
     };
@@ -103,14 +107,25 @@ public class MainActivity extends BaseActivity
     private ModeType modeType = ModeType.UNKNOWN;
     private int idOpenedGallery = -1;//Position in the recycler of the opened gallery
     private boolean inspecting = false, filteringTag = false;
+    private PagePrefetcher prefetcher;
+    // position of the first gallery of the last page added with infinite scroll, set by the inspector threads
+    private volatile int lastPageStart = 0;
     private SortType temporaryType;
     private Snackbar snackbar = null;
     private PageSwitcher pageSwitcher;
     private final InspectorV3.InspectorResponse
         resetDataset = new MainInspectorResponse() {
+        @Override
+        public void onStart() {
+            super.onStart();
+            // a new search, the pages prefetched for the previous one are not needed anymore
+            prefetcher.cancel();
+        }
+
         @Override
         public void onSuccess(List<GenericGallery> galleries) {
             super.onSuccess(galleries);
+            lastPageStart = 0;
             adapter.restartDataset(galleries);
             showPageSwitcher(inspector.getPage(), inspector.getPageCount());
             runOnUiThread(() -> recycler.smoothScrollToPosition(0));
@@ -128,6 +143,7 @@ public class MainActivity extends BaseActivity
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        prefetcher = new PagePrefetcher(this);
         //load inspector
         selectStartMode(getIntent(), getPackageName());
         LogUtility.d("Main started with mode " + modeType);
@@ -141,6 +157,7 @@ public class MainActivity extends BaseActivity
         refresher.setOnRefreshListener(() -> {
             inspector = inspector.cloneInspector(MainActivity.this, resetDataset);
             if (Global.isInfiniteScrollMain()) inspector.setPage(1);
+            inspector.invalidateCache();
             inspector.start();
         });
 
@@ -225,13 +242,16 @@ public class MainActivity extends BaseActivity
         recycler.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
             public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
-                if (inspecting) return;
                 if (!Global.isInfiniteScrollMain()) return;
                 if (refresher.isRefreshing()) return;
 
                 CustomGridLayoutManager manager = (CustomGridLayoutManager) recycler.getLayoutManager();
                 assert manager != null;
-                if (!pageSwitcher.lastPageReached() && lastGalleryReached(manager)) {
+                if (pageSwitcher.lastPageReached()) return;
+                // while the next page loads the inspector is not the one of the last page shown
+                if (inspecting) return;
+                prefetcher.onScrolled(inspector, lastPageSeen(manager));
+                if (lastGalleryReached(manager)) {
                     inspecting = true;
                     inspector = inspector.cloneInspector(MainActivity.this, addDataset);
                     inspector.setPage(inspector.getPage() + 1);
@@ -242,6 +262,16 @@ public class MainActivity extends BaseActivity
         changeLayout(getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE);
     }
 
+    /**
+     * @return part of the last page added which has been shown, between 0 and 1
+     */
+    private float lastPageSeen(CustomGridLayoutManager manager) {
+        int count = adapter.getItemCount() - lastPageStart;
+        if (count <= 0) return 0;
+        int seen = manager.findLastVisibleItemPosition() - lastPageStart + 1;
+        return Math.max(0, Math.min(count, seen)) / (float) count;
+    }
+
     /**
      * Check if the last gallery has been shown
      **/
@@ -482,6 +512,12 @@ public class MainActivity extends BaseActivity
         }).setNegativeButton(R.string.no, null).show();
     }
 
+    @Override
+    protected void onDestroy() {
+        prefetcher.cancel();
+        super.onDestroy();
+    }
+
     @SuppressLint("NotifyDataSetChanged")
     @Override
     protected void onResume() {
@@ -701,6 +737,11 @@ public class MainActivity extends BaseActivity
                 for (GenericGallery g : inspector.getGalleries())
                     DownloadGalleryV2.downloadGallery(MainActivity.this, g);
             });
+        if (inspector.getPageCount() > 1 && !inspector.getRequestType().isSingle())
+            builder.setNeutralButton(R.string.download_all_results, (dialog, which) -> {
+                BulkDownloadWorker.start(MainActivity.this, inspector);
+                Toast.makeText(MainActivity.this, R.string.bulk_download_started, Toast.LENGTH_SHORT).show();
+            });
         builder.show();
     }
 
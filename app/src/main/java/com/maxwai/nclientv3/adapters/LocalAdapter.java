@@ -28,9 +28,11 @@ import com.maxwai.nclientv3.api.local.LocalGallery;
 import com.maxwai.nclientv3.api.local.LocalSortType;
 import com.maxwai.nclientv3.async.converters.CreatePdfOrZip;
 import com.maxwai.nclientv3.async.database.Queries;
+import com.maxwai.nclientv3.async.downloader.CoalescingObserver;
 import com.maxwai.nclientv3.async.downloader.DownloadGalleryV2;
 import com.maxwai.nclientv3.async.downloader.DownloadObserver;
 import com.maxwai.nclientv3.async.downloader.DownloadQueue;
+import com.maxwai.nclientv3.async.downloader.DownloadQueueListener;
 import com.maxwai.nclientv3.async.downloader.GalleryDownloaderV2;
 import com.maxwai.nclientv3.components.classes.MultichoiceAdapter;
 import com.maxwai.nclientv3.components.status.StatusManager;
@@ -51,6 +53,7 @@ import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHolder> implements Filterable {
+    private static final int PROGRESS_UPDATES_PER_SECOND = 4;
     private final SparseIntArray statuses = new SparseIntArray();
     private final LocalActivity context;
     private final List<LocalGallery> dataset;
@@ -122,7 +125,7 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
     private List<Object> filter;
     @NonNull
     private String lastQuery;
-    private final DownloadObserver observer = new DownloadObserver() {
+    private final DownloadObserver observer = new CoalescingObserver(new DownloadObserver() {
         private void updatePosition(GalleryDownloaderV2 downloader) {
             final int id = filter.indexOf(downloader);
             if (id >= 0) context.runOnUiThread(() -> notifyItemChanged(id));
@@ -160,6 +163,30 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
         public void triggerPauseDownload(GalleryDownloaderV2 downloader) {
             context.runOnUiThread(() -> notifyItemChanged(filter.indexOf(downloader)));
         }
+    }, PROGRESS_UPDATES_PER_SECOND);
+    private final DownloadQueueListener queueListener = new DownloadQueueListener() {
+        @Override
+        public void onDownloaderAdded(GalleryDownloaderV2 downloader) {
+            if (galleryDownloaders.contains(downloader)) return;
+            galleryDownloaders.add(downloader);
+            if (!downloader.getPathTitle().toLowerCase(Locale.US).contains(lastQuery)) return;
+            context.runOnUiThread(() -> {
+                int position = sortedPosition(downloader);
+                filter.add(position, downloader);
+                notifyItemInserted(position);
+            });
+        }
+
+        @Override
+        public void onDownloaderRemoved(GalleryDownloaderV2 downloader) {
+            galleryDownloaders.remove(downloader);
+            context.runOnUiThread(() -> {
+                int position = filter.indexOf(downloader);
+                if (position < 0) return;
+                filter.remove(position);
+                notifyItemRemoved(position);
+            });
+        }
     };
     private int colCount;
 
@@ -167,12 +194,13 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
         this.context = cont;
         dataset = new CopyOnWriteArrayList<>(myDataset);
         colCount = cont.getColCount();
-        galleryDownloaders = DownloadQueue.getDownloaders();
+        galleryDownloaders = new CopyOnWriteArrayList<>(DownloadQueue.getDownloaders());
         lastQuery = cont.getQuery();
         filter = new ArrayList<>(myDataset);
         filter.addAll(galleryDownloaders);
 
         DownloadQueue.addObserver(observer);
+        DownloadQueue.addListener(queueListener);
         sortElements();
     }
 
@@ -261,6 +289,19 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
         }
     }
 
+    /**
+     * @return where item has to be inserted to keep the current sorting of filter
+     */
+    private int sortedPosition(Object item) {
+        LocalSortType type = Global.getLocalSortType();
+        if (type.type == LocalSortType.Type.RANDOM) return filter.size();
+        Comparator<Object> comparator = getComparator(type.type);
+        if (type.descending) comparator = comparator.reversed();
+        for (int i = 0; i < filter.size(); i++)
+            if (comparator.compare(item, filter.get(i)) < 0) return i;
+        return filter.size();
+    }
+
     private Comparator<Object> getComparator(LocalSortType.Type type) {
         switch (type) {
             case DATE:
@@ -365,6 +406,7 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
         holder.cancelButton.setOnClickListener(v -> removeDownloader(downloader));
         switch (downloader.getStatus()) {
             case PAUSED:
+            case FAILED:
                 holder.playButton.setImageResource(R.drawable.ic_play);
                 holder.playButton.setOnClickListener(v -> {
                     downloader.setStatus(GalleryDownloaderV2.Status.NOT_STARTED);
@@ -384,7 +426,9 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
                 holder.playButton.setOnClickListener(v -> DownloadQueue.givePriority(downloader));
                 break;
         }
-        holder.progress.setText(context.getString(R.string.percentage_format, percentage));
+        String error = downloader.getError();
+        if (error != null) holder.progress.setText(error);
+        else holder.progress.setText(context.getString(R.string.percentage_format, percentage));
         holder.progress.setVisibility(downloader.getStatus() == GalleryDownloaderV2.Status.NOT_STARTED ? View.GONE : View.VISIBLE);
         holder.progressBar.setProgress(percentage);
         holder.progressBar.setIndeterminate(downloader.getStatus() == GalleryDownloaderV2.Status.NOT_STARTED);
@@ -514,6 +558,7 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
 
     public void removeObserver() {
         DownloadQueue.removeObserver(observer);
+        DownloadQueue.removeListener(queueListener);
     }
 
     public void viewRandom() {
@@ -531,8 +576,11 @@ public class LocalAdapter extends MultichoiceAdapter<Object, LocalAdapter.ViewHo
         for (Object o : getSelected()) {
             if (!(o instanceof GalleryDownloaderV2)) continue;
             GalleryDownloaderV2 d = (GalleryDownloaderV2) o;
-            if (d.getStatus() == GalleryDownloaderV2.Status.PAUSED)
+            if (d.getStatus() == GalleryDownloaderV2.Status.PAUSED || d.getStatus() == GalleryDownloaderV2.Status.FAILED) {
+                // resumed by hand, the pages already saved are checked again
+                d.requestVerification();
                 d.setStatus(GalleryDownloaderV2.Status.NOT_STARTED);
+            }
             DownloadGalleryV2.startWork(context);
         }
         context.runOnUiThread(this::notifyDataSetChanged);
@@ -0,0 +1,17 @@
+package com.maxwai.nclientv3.api;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Source of the galleries requested by an {@link InspectorV3}
+ */
+public interface GalleryBackend {
+    /**
+     * Loads the galleries requested by inspector and sets them with {@link InspectorV3#setResult}
+     *
+     * @return false if this backend can't serve the request and the next one must be tried
+     */
+    boolean load(@NonNull InspectorV3 inspector) throws IOException, InspectorV3.InvalidResponseException;
+}
@@ -23,27 +23,34 @@ import com.maxwai.nclientv3.api.local.LocalGallery;
 import com.maxwai.nclientv3.async.database.Queries;
 import com.maxwai.nclientv3.settings.Global;
 import com.maxwai.nclientv3.utility.LogUtility;
+import com.maxwai.nclientv3.utility.UnescapingReader;
 import com.maxwai.nclientv3.utility.Utility;
 
 import org.jsoup.Jsoup;
+import org.jsoup.nodes.DataNode;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.regex.Pattern;
 
+import okhttp3.CacheControl;
 import okhttp3.Request;
 import okhttp3.Response;
 
@@ -59,6 +66,19 @@ public class InspectorV3 extends Thread implements Parcelable {
             return new InspectorV3[size];
         }
     };
+    private static final String GALLERY_VARIABLE = "_gallery";
+    private static final String JSON_PARSE_CALL = "JSON.parse(\"";
+    private static final int MAX_CALL_DISTANCE = 32;
+    private static final Pattern PAGE_PARAMETER = Pattern.compile("([?&])page=\\d+");
+    // tried in order, the pages are scraped when the API can't be used
+    private static final List<GalleryBackend> BACKENDS = Arrays.asList(
+        new JsonApiBackend(),
+        inspector -> {
+            inspector.createDocument();
+            inspector.parseDocument();
+            return true;
+        }
+    );
     private SortType sortType;
     private boolean custom;
     private int page, pageCount = -1, id;
@@ -70,6 +90,10 @@ public class InspectorV3 extends Thread implements Parcelable {
     private InspectorResponse response;
     private WeakReference<Context> context;
     private Document htmlDocument;
+    private SearchPageScanner.Result scannedPage;
+    // set by a refresh, the requests skip the HTTP cache
+    private boolean forceNetwork = false;
+    private volatile boolean canceled = false;
 
     protected InspectorV3(Parcel in) {
         sortType = SortType.values()[in.readByte()];
@@ -274,12 +298,7 @@ public class InspectorV3 extends Thread implements Parcelable {
     }
 
     private void createUrl() {
-        String query;
-        try {
-            query = this.query == null ? null : URLEncoder.encode(this.query, Charset.defaultCharset().name());
-        } catch (UnsupportedEncodingException ignore) {
-            query = this.query;
-        }
+        String query = encodedQuery();
         StringBuilder builder = new StringBuilder(Utility.getBaseUrl());
         if (requestType == ApiRequestType.BYALL) builder.append("?page=").append(page);
         else if (requestType == ApiRequestType.RANDOM) builder.append("random/");
@@ -292,50 +311,111 @@ public class InspectorV3 extends Thread implements Parcelable {
             else builder.append('?');
             builder.append("page=").append(page);
         } else if (requestType == ApiRequestType.BYSEARCH || requestType == ApiRequestType.BYTAG) {
-            builder.append("search/?q=").append(query);
-            for (Tag tt : tags) {
-                if (builder.toString().contains(tt.toQueryTag(TagStatus.ACCEPTED))) continue;
-                builder.append('+');
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                    builder.append(URLEncoder.encode(tt.toQueryTag(), Charset.defaultCharset()));
-                } else {
-                    try {
-                        //noinspection CharsetObjectCanBeUsed
-                        builder.append(URLEncoder.encode(tt.toQueryTag(), Charset.defaultCharset().name()));
-                    } catch (UnsupportedEncodingException e) {
-                        LogUtility.wtf("This should not happen since we used the default charset", e);
-                        return;
-                    }
-                }
-            }
-            if (ranges != null)
-                builder.append('+').append(ranges.toQuery());
-            builder.append("&page=").append(page);
-            if (sortType.getUrlAddition() != null) {
-                builder.append("&sort=").append(sortType.getUrlAddition());
-            }
+            builder.append("search/?q=");
+            if (!appendSearchQuery(builder, query)) return;
         }
         url = builder.toString().replace(' ', '+');
         LogUtility.d("WWW: " + getBookmarkURL());
     }
 
+    /**
+     * @return the url of the JSON API returning the same galleries, null if there is none for this request
+     */
+    @Nullable
+    String createApiUrl() {
+        StringBuilder builder = new StringBuilder(Utility.getBaseUrl()).append("api/");
+        if (requestType == ApiRequestType.BYALL) builder.append("galleries/all?page=").append(page);
+        else if (requestType == ApiRequestType.BYSINGLE) builder.append("gallery/").append(id);
+        else if (requestType == ApiRequestType.BYSEARCH || requestType == ApiRequestType.BYTAG) {
+            builder.append("galleries/search?query=");
+            if (!appendSearchQuery(builder, encodedQuery())) return null;
+        } else return null;
+        return builder.toString().replace(' ', '+');
+    }
+
+    @Nullable
+    private String encodedQuery() {
+        try {
+            return this.query == null ? null : URLEncoder.encode(this.query, Charset.defaultCharset().name());
+        } catch (UnsupportedEncodingException ignore) {
+            return this.query;
+        }
+    }
+
+    /**
+     * Appends the query, the tags, the ranges, the page and the sort of a search
+     *
+     * @return false if a tag couldn't be encoded
+     */
+    private boolean appendSearchQuery(StringBuilder builder, String query) {
+        builder.append(query);
+        for (Tag tt : tags) {
+            if (builder.toString().contains(tt.toQueryTag(TagStatus.ACCEPTED))) continue;
+            builder.append('+');
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                builder.append(URLEncoder.encode(tt.toQueryTag(), Charset.defaultCharset()));
+            } else {
+                try {
+                    //noinspection CharsetObjectCanBeUsed
+                    builder.append(URLEncoder.encode(tt.toQueryTag(), Charset.defaultCharset().name()));
+                } catch (UnsupportedEncodingException e) {
+                    LogUtility.wtf("This should not happen since we used the default charset", e);
+                    return false;
+                }
+            }
+        }
+        if (ranges != null)
+            builder.append('+').append(ranges.toQuery());
+        builder.append("&page=").append(page);
+        if (sortType.getUrlAddition() != null) {
+            builder.append("&sort=").append(sortType.getUrlAddition());
+        }
+        return true;
+    }
+
     private String getBookmarkURL() {
         if (page < 2) return url;
         else return url.substring(0, url.lastIndexOf('=') + 1);
     }
 
     public boolean createDocument() throws IOException {
-        if (htmlDocument != null) return true;
-        try (Response response = Global.getClient(context.get()).newCall(new Request.Builder().url(url).build()).execute()) {
-            setHtmlDocument(Jsoup.parse(response.body().byteStream(), "UTF-8", Utility.getBaseUrl()));
-            return response.code() == HttpURLConnection.HTTP_OK;
+        if (htmlDocument != null || scannedPage != null) return true;
+        Request request = newRequest(url);
+        try (Response response = Global.getClient(context.get()).newCall(request).execute()) {
+            if (requestType.isSingle()) {
+                setHtmlDocument(Jsoup.parse(response.body().byteStream(), "UTF-8", Utility.getBaseUrl()));
+                return response.code() == HttpURLConnection.HTTP_OK;
+            }
+            if (response.code() != HttpURLConnection.HTTP_OK) {
+                setHtmlDocument(Jsoup.parse(response.body().byteStream(), "UTF-8", Utility.getBaseUrl()));
+                return false;
+            }
+            // search pages are scanned while they download, without building a DOM
+            SearchPageScanner scanner = new SearchPageScanner(response.body().charStream());
+            scannedPage = scanner.scan();
+            if (scannedPage != null) return true;
+            // markup the scanner doesn't know, Jsoup parses the text already downloaded
+            setHtmlDocument(Jsoup.parse(scanner.getPage(), Utility.getBaseUrl()));
+            return true;
         }
     }
 
     public void parseDocument() throws IOException, InvalidResponseException {
-        if (requestType.isSingle()) doSingle(htmlDocument.body());
+        if (scannedPage != null) doSearch(scannedPage);
+        else if (requestType.isSingle()) doSingle(htmlDocument.body());
         else doSearch(htmlDocument.body());
         htmlDocument = null;
+        scannedPage = null;
+    }
+
+    /**
+     * Sets what a {@link GalleryBackend} loaded in place of the scraped pages
+     */
+    void setResult(ArrayList<GenericGallery> galleries, int pageCount) {
+        this.galleries = galleries;
+        this.pageCount = pageCount;
+        if (!requestType.isSingle() && Global.isExactTagMatch())
+            filterDocumentTags();
     }
 
     public void setHtmlDocument(Document htmlDocument) {
@@ -354,8 +434,26 @@ public class InspectorV3 extends Thread implements Parcelable {
         LogUtility.d("Starting download: " + url);
         if (response != null) response.onStart();
         try {
-            createDocument();
-            parseDocument();
+            ResultCache cache = ResultCache.getInstance();
+            // a refresh must not take the result of a load started before it
+            ResultCache.Entry cached = forceNetwork ? null : cache.getOrStartLoading(requestType, getCacheKey());
+            if (cached != null) {
+                LogUtility.d("From cache: " + url);
+                // the galleries are shared with the cache, only the list is copied
+                galleries = new ArrayList<>(cached.galleries);
+                pageCount = cached.pageCount;
+            } else {
+                try {
+                    for (GalleryBackend backend : BACKENDS) {
+                        // a dropped request must not go on with the next backend
+                        if (canceled) throw new IOException("Canceled: " + url);
+                        if (backend.load(this)) break;
+                    }
+                    cache.put(requestType, getCacheKey(), galleries, pageCount);
+                } finally {
+                    cache.finishLoading(getCacheKey());
+                }
+            }
             if (response != null) {
                 response.onSuccess(galleries);
             }
@@ -366,6 +464,48 @@ public class InspectorV3 extends Thread implements Parcelable {
         LogUtility.d("Finished download: " + url);
     }
 
+    /**
+     * The galleries kept by {@link ResultCache} depend on the url and on the exact tag filter
+     */
+    private String getCacheKey() {
+        return Global.isExactTagMatch() ? url + "#exact" : url;
+    }
+
+    /**
+     * Stops the inspector before its next backend, the caller cancels the running requests
+     */
+    void cancel() {
+        canceled = true;
+    }
+
+    boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Makes the next start download the galleries again, from the server and not from the HTTP cache.
+     * The other pages of the same request are dropped too, they would not match the new one.
+     */
+    public void invalidateCache() {
+        String request = withoutPage(getCacheKey());
+        ResultCache.getInstance().removeIf(key -> withoutPage(key).equals(request));
+        forceNetwork = true;
+    }
+
+    private static String withoutPage(String key) {
+        return PAGE_PARAMETER.matcher(key).replaceFirst("$1page=");
+    }
+
+    /**
+     * @return a request for url which skips the HTTP cache after {@link #invalidateCache()}
+     */
+    @NonNull
+    Request newRequest(@NonNull String url) {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (forceNetwork) builder.cacheControl(CacheControl.FORCE_NETWORK);
+        return builder.build();
+    }
+
     private void filterDocumentTags() {
         if (galleries == null || tags == null) return;
         ArrayList<SimpleGallery> galleryTag = new ArrayList<>(galleries.size());
@@ -383,11 +523,15 @@ public class InspectorV3 extends Thread implements Parcelable {
     private void doSingle(Element document) throws IOException, InvalidResponseException {
         galleries = new ArrayList<>(1);
         Elements scripts = document.getElementsByTag("script");
-        if (scripts.isEmpty())
-            throw new InvalidResponseException();
-        String json = trimScriptTag(scripts.get(1).html());
-        if (json == null)
-            throw new InvalidResponseException();
+        Reader json = findGalleryJson(scripts);
+        if (json == null) {
+            if (scripts.isEmpty())
+                throw new InvalidResponseException();
+            String trimmed = trimScriptTag(scripts.get(1).html());
+            if (trimmed == null)
+                throw new InvalidResponseException();
+            json = new StringReader(trimmed);
+        }
         Element relContainer = document.getElementById("related-container");
         Elements rel;
         if (relContainer != null)
@@ -404,6 +548,36 @@ public class InspectorV3 extends Thread implements Parcelable {
         galleries.add(new Gallery(context.get(), json, rel, isFavorite));
     }
 
+    /**
+     * Locates the string literal passed to JSON.parse for window._gallery in the raw script
+     * kept by Jsoup, without copying it
+     *
+     * @return a reader decoding the literal, null if the page is not laid out as expected
+     */
+    @Nullable
+    private static Reader findGalleryJson(Elements scripts) {
+        for (Element script : scripts) {
+            if (script.childNodeSize() == 0 || !(script.childNode(0) instanceof DataNode))
+                continue;
+            String data = ((DataNode) script.childNode(0)).getWholeData();
+            int start = data.indexOf(GALLERY_VARIABLE);
+            if (start >= 0) return findGalleryJson(data, start);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Reader findGalleryJson(String script, int start) {
+        int call = script.indexOf(JSON_PARSE_CALL, start);
+        if (call < 0 || call - start > MAX_CALL_DISTANCE) return null;
+        start = call + JSON_PARSE_CALL.length();
+        int end = start;
+        while (end < script.length() && script.charAt(end) != '"')
+            end += script.charAt(end) == '\\' ? 2 : 1;
+        if (end >= script.length() || end == start) return null;
+        return new UnescapingReader(script, start, end);
+    }
+
     @Nullable
     private String trimScriptTag(String scriptHtml) {
         int s = scriptHtml.indexOf("parse");
@@ -420,20 +594,28 @@ public class InspectorV3 extends Thread implements Parcelable {
         galleries = new ArrayList<>(gal.size());
         for (Element e : gal) galleries.add(new SimpleGallery(context.get(), e));
         gal = document.getElementsByClass("last");
-        pageCount = gal.isEmpty()? Math.max(1, page) : findTotal(gal.last());
+        pageCount = gal.isEmpty()? Math.max(1, page) : findTotal(gal.last().attr("href"));
         if (document.getElementById("content") == null)
             throw new InvalidResponseException();
         if (Global.isExactTagMatch())
             filterDocumentTags();
     }
 
-    private int findTotal(@Nullable Element e) {
-        if (e == null)
+    private void doSearch(SearchPageScanner.Result scanned) {
+        galleries = new ArrayList<>(scanned.cards.size());
+        for (SearchPageScanner.Card card : scanned.cards)
+            galleries.add(new SimpleGallery(context.get(), card.tags, card.href, card.thumbnail, card.title));
+        pageCount = scanned.lastHref == null ? Math.max(1, page) : findTotal(scanned.lastHref);
+        if (Global.isExactTagMatch())
+            filterDocumentTags();
+    }
+
+    private int findTotal(@Nullable String href) {
+        if (href == null)
             return 1;
-        String temp = e.attr("href");
 
         try {
-            return Integer.parseInt(Objects.requireNonNull(Uri.parse(temp).getQueryParameter("page")));
+            return Integer.parseInt(Objects.requireNonNull(Uri.parse(href).getQueryParameter("page")));
         } catch (Exception ignore) {
             return 1;
         }
@@ -461,6 +643,11 @@ public class InspectorV3 extends Thread implements Parcelable {
         return url;
     }
 
+    @Nullable
+    Context getContext() {
+        return context.get();
+    }
+
     public ApiRequestType getRequestType() {
         return requestType;
     }
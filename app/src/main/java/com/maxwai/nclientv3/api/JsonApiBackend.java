@@ -0,0 +1,144 @@
+package com.maxwai.nclientv3.api;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import androidx.annotation.NonNull;
+
+import com.maxwai.nclientv3.api.components.Gallery;
+import com.maxwai.nclientv3.api.components.GalleryData;
+import com.maxwai.nclientv3.api.components.GenericGallery;
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.settings.Login;
+import com.maxwai.nclientv3.utility.LogUtility;
+import com.maxwai.nclientv3.utility.Utility;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import okhttp3.Response;
+
+/**
+ * Loads the galleries from the JSON API of the site, much smaller than the html pages.
+ * <p>
+ * Only the latest galleries, the searches and the single galleries of a logged out user have an
+ * endpoint. When the API answers with an error or with unexpected content it is not used again
+ * for a while and the pages are scraped in the meantime; a network error only affects the request.
+ */
+class JsonApiBackend implements GalleryBackend {
+    private static final String RELATED_API_URL = "api/gallery/%d/related";
+    private static final long RETRY_AFTER_MS = 10 * 60_000;
+    private volatile long disabledUntil = 0;
+
+    @Override
+    public boolean load(@NonNull InspectorV3 inspector) {
+        if (SystemClock.elapsedRealtime() < disabledUntil) return false;
+        boolean single = inspector.getRequestType().isSingle();
+        // the favorite button of a gallery is only on its page
+        if (single && Login.isLogged()) return false;
+        String url = inspector.createApiUrl();
+        if (url == null) return false;
+        Context context = inspector.getContext();
+        try (Response response = Global.getClient(context).newCall(inspector.newRequest(url)).execute()) {
+            if (response.code() != HttpURLConnection.HTTP_OK) {
+                // a missing gallery is missing from the pages too
+                if (response.code() != HttpURLConnection.HTTP_NOT_FOUND)
+                    disable("HTTP " + response.code() + " from " + url);
+                return false;
+            }
+            try (JsonReader reader = new JsonReader(response.body().charStream())) {
+                if (single) {
+                    Gallery gallery = new Gallery(context, reader, new ArrayList<>(0), false);
+                    if (!gallery.isValid()) {
+                        disable("Invalid gallery from " + url);
+                        return false;
+                    }
+                    gallery.setRelated(loadRelated(inspector, gallery.getId()));
+                    ArrayList<GenericGallery> galleries = new ArrayList<>(1);
+                    galleries.add(gallery);
+                    inspector.setResult(galleries, 1);
+                } else {
+                    readSearch(inspector, context, reader);
+                }
+            }
+            return true;
+        } catch (MalformedJsonException | RuntimeException e) {
+            disable("Error reading " + url + ": " + e);
+            return false;
+        } catch (IOException e) {
+            // a dropped connection or a canceled prefetch, not a problem of the API
+            if (inspector.isCanceled()) throw e;
+            LogUtility.w("Unable to load " + url, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads {"result": [galleries], "num_pages": n, "per_page": n}
+     */
+    private void readSearch(InspectorV3 inspector, Context context, JsonReader reader) throws IOException {
+        ArrayList<GenericGallery> galleries = null;
+        int pageCount = -1;
+        reader.beginObject();
+        while (reader.peek() != JsonToken.END_OBJECT) {
+            switch (reader.nextName()) {
+                case "result":
+                    galleries = new ArrayList<>(readGalleries(context, reader));
+                    break;
+                case "num_pages":
+                    pageCount = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (galleries == null || pageCount < 0)
+            throw new MalformedJsonException("Missing result or num_pages");
+        inspector.setResult(galleries, Math.max(1, pageCount));
+    }
+
+    private List<SimpleGallery> readGalleries(Context context, JsonReader reader) throws IOException {
+        List<SimpleGallery> galleries = new ArrayList<>(25);
+        reader.beginArray();
+        while (reader.hasNext())
+            galleries.add(new SimpleGallery(context, new GalleryData(reader)));
+        reader.endArray();
+        return galleries;
+    }
+
+    /**
+     * @return the related galleries, empty if they can't be loaded
+     */
+    private List<SimpleGallery> loadRelated(InspectorV3 inspector, int id) {
+        Context context = inspector.getContext();
+        String url = Utility.getBaseUrl() + String.format(Locale.US, RELATED_API_URL, id);
+        try (Response response = Global.getClient(context).newCall(inspector.newRequest(url)).execute();
+             JsonReader reader = new JsonReader(response.body().charStream())) {
+            if (response.code() != HttpURLConnection.HTTP_OK) return new ArrayList<>(0);
+            List<SimpleGallery> related = new ArrayList<>(0);
+            reader.beginObject();
+            while (reader.peek() != JsonToken.END_OBJECT) {
+                if (reader.nextName().equals("result")) related = readGalleries(context, reader);
+                else reader.skipValue();
+            }
+            reader.endObject();
+            return related;
+        } catch (IOException | RuntimeException e) {
+            LogUtility.w("Error loading related galleries of " + id, e);
+            return new ArrayList<>(0);
+        }
+    }
+
+    private void disable(String reason) {
+        LogUtility.w(reason + ", scraping pages for " + RETRY_AFTER_MS / 1000 + " s");
+        disabledUntil = SystemClock.elapsedRealtime() + RETRY_AFTER_MS;
+    }
+}
@@ -0,0 +1,142 @@
+package com.maxwai.nclientv3.api;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.RequestManager;
+import com.maxwai.nclientv3.api.components.GenericGallery;
+import com.maxwai.nclientv3.components.GlideX;
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.Call;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+
+/**
+ * Loads the pages after the last one shown with infinite scroll before they are reached.
+ * <p>
+ * The prefetched galleries only go to {@link ResultCache}, so the inspector started when the
+ * end of the list is reached finds them there, or waits for them if the prefetch is still
+ * running. Their thumbnails are loaded by Glide in the meantime. {@link #cancel()} must be called when the search changes, the running prefetches
+ * are then dropped along with their requests.
+ */
+public class PagePrefetcher {
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // pages of the current search already prefetched
+    private final Set<Integer> requested = new HashSet<>();
+    private final List<InspectorV3> running = new ArrayList<>();
+    private int generation = 0;
+
+    public PagePrefetcher(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @param current the inspector of the last page shown
+     * @param seen    part of the last page scrolled, between 0 and 1
+     */
+    public synchronized void onScrolled(@Nullable InspectorV3 current, float seen) {
+        int pages = Global.getPrefetchPages();
+        if (current == null || pages <= 0 || seen * 100 < Global.getPrefetchThreshold()) return;
+        if (!ResultCache.isCacheable(current.getRequestType())) return;
+        for (int page = current.getPage() + 1; page <= current.getPage() + pages; page++) {
+            if (page > current.getPageCount()) break;
+            if (!requested.add(page)) continue;
+            InspectorV3 inspector = current.cloneInspector(context, new PrefetchResponse(generation));
+            inspector.setPage(page);
+            LogUtility.d("Prefetching " + inspector.getUrl());
+            running.add(inspector);
+            inspector.start();
+        }
+    }
+
+    /**
+     * Drops the running prefetches, their results are no longer wanted
+     */
+    public synchronized void cancel() {
+        generation++;
+        requested.clear();
+        if (running.isEmpty()) return;
+        Set<HttpUrl> urls = new HashSet<>();
+        for (InspectorV3 inspector : running) {
+            inspector.cancel();
+            addUrl(urls, inspector.getUrl());
+            addUrl(urls, inspector.createApiUrl());
+        }
+        running.clear();
+        Dispatcher dispatcher = Global.getClient(context).dispatcher();
+        // the calls waiting for a free connection are dropped too
+        cancelCalls(dispatcher.queuedCalls(), urls);
+        cancelCalls(dispatcher.runningCalls(), urls);
+    }
+
+    private static void cancelCalls(List<Call> calls, Set<HttpUrl> urls) {
+        for (Call call : calls)
+            if (urls.contains(call.request().url())) call.cancel();
+    }
+
+    private static void addUrl(Set<HttpUrl> urls, @Nullable String url) {
+        HttpUrl parsed = url == null ? null : HttpUrl.parse(url);
+        if (parsed != null) urls.add(parsed);
+    }
+
+    private synchronized boolean isCurrent(int generation) {
+        return this.generation == generation;
+    }
+
+    private synchronized void finished(InspectorV3 inspector) {
+        running.remove(inspector);
+    }
+
+    private void warmThumbnails(List<GenericGallery> galleries) {
+        if (Global.getDownloadPolicy() == Global.DataUsageType.NONE) return;
+        handler.post(() -> {
+            RequestManager glide = GlideX.with(context);
+            if (glide == null) return;
+            for (GenericGallery gallery : galleries)
+                if (gallery instanceof SimpleGallery)
+                    glide.load(((SimpleGallery) gallery).getThumbnail()).preload();
+        });
+    }
+
+    private class PrefetchResponse extends InspectorV3.DefaultInspectorResponse {
+        private final int generation;
+        private InspectorV3 inspector;
+
+        PrefetchResponse(int generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean shouldStart(InspectorV3 inspector) {
+            this.inspector = inspector;
+            return isCurrent(generation);
+        }
+
+        @Override
+        public void onSuccess(List<GenericGallery> galleries) {
+            if (isCurrent(generation)) warmThumbnails(galleries);
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            if (isCurrent(generation)) LogUtility.d("Prefetch failed", e);
+        }
+
+        @Override
+        public void onEnd() {
+            finished(inspector);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.maxwai.nclientv3.api;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.maxwai.nclientv3.api.components.GenericGallery;
+import com.maxwai.nclientv3.api.enums.ApiRequestType;
+import com.maxwai.nclientv3.settings.Login;
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Parsed galleries of the last requests, so going back to a page, reopening a gallery or
+ * rotating the screen doesn't download and parse it again.
+ * <p>
+ * Entries live for a time which depends on the request type: the latest galleries change
+ * quickly, a gallery almost never. The cache is bounded by a weight of one per gallery plus
+ * one every {@link #PAGES_PER_WEIGHT} pages of the complete ones.
+ * <p>
+ * A request is loaded by one inspector at a time: the others asking for it, like the one
+ * started at the end of the list while the page is still prefetched, wait for its result.
+ */
+public class ResultCache {
+    private static final int MAX_WEIGHT = 2000;
+    private static final int PAGES_PER_WEIGHT = 10;
+    private static final long BYALL_TTL_MS = 2 * 60_000;
+    private static final long SEARCH_TTL_MS = 10 * 60_000;
+    private static final long SINGLE_TTL_MS = 60 * 60_000;
+    private static final ResultCache INSTANCE = new ResultCache();
+    private final LruCache<String, Entry> cache = new LruCache<>(MAX_WEIGHT) {
+        @Override
+        protected int sizeOf(@NonNull String key, @NonNull Entry value) {
+            return value.weight;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, @NonNull String key, @NonNull Entry oldValue, @Nullable Entry newValue) {
+            if (evicted) LogUtility.d("Evicted " + key + ", " + getStats());
+        }
+    };
+    // requests being loaded, with the inspector thread loading them
+    private final Map<String, Thread> loading = new HashMap<>();
+    private int expired = 0;
+
+    private ResultCache() {
+    }
+
+    @NonNull
+    public static ResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return how long the result of a request stays valid, 0 if it must not be cached
+     */
+    private static long getTtl(ApiRequestType type) {
+        // the favorite button of a logged user changes while the gallery stays the same
+        if (type.equals(ApiRequestType.BYSINGLE)) return Login.isLogged() ? 0 : SINGLE_TTL_MS;
+        if (type.equals(ApiRequestType.BYSEARCH) || type.equals(ApiRequestType.BYTAG) || type.equals(ApiRequestType.RELATED))
+            return SEARCH_TTL_MS;
+        if (type.equals(ApiRequestType.BYALL)) return BYALL_TTL_MS;
+        // favorites change with the user, random must not repeat
+        return 0;
+    }
+
+    static boolean isCacheable(@NonNull ApiRequestType type) {
+        return getTtl(type) > 0;
+    }
+
+    @Nullable
+    Entry get(@NonNull ApiRequestType type, @NonNull String key) {
+        if (getTtl(type) <= 0) return null;
+        Entry entry = cache.get(key);
+        if (entry == null) return null;
+        if (SystemClock.elapsedRealtime() < entry.expiresAt) return entry;
+        cache.remove(key);
+        synchronized (this) {
+            expired++;
+        }
+        return null;
+    }
+
+    /**
+     * Looks key up, waiting first for the inspector already loading it
+     *
+     * @return the cached entry; if null the calling thread now loads key and must call
+     * {@link #finishLoading(String)} when done
+     */
+    @Nullable
+    Entry getOrStartLoading(@NonNull ApiRequestType type, @NonNull String key) {
+        if (getTtl(type) <= 0) return null;
+        synchronized (loading) {
+            while (true) {
+                Entry entry = get(type, key);
+                if (entry != null) return entry;
+                Thread owner = loading.get(key);
+                if (owner == null || !owner.isAlive()) {
+                    loading.put(key, Thread.currentThread());
+                    return null;
+                }
+                try {
+                    loading.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes the inspectors waiting for key, its result (if any) must already be in the cache
+     */
+    void finishLoading(@NonNull String key) {
+        synchronized (loading) {
+            if (loading.get(key) != Thread.currentThread()) return;
+            loading.remove(key);
+            loading.notifyAll();
+        }
+    }
+
+    void put(@NonNull ApiRequestType type, @NonNull String key, @Nullable List<GenericGallery> galleries, int pageCount) {
+        long ttl = getTtl(type);
+        if (ttl <= 0 || galleries == null) return;
+        for (GenericGallery gallery : galleries)
+            if (!gallery.isValid()) return;
+        cache.put(key, new Entry(galleries, pageCount, SystemClock.elapsedRealtime() + ttl));
+    }
+
+    public void remove(@NonNull String key) {
+        cache.remove(key);
+    }
+
+    /**
+     * Removes the entries whose key matches filter
+     */
+    void removeIf(@NonNull Predicate<String> filter) {
+        for (String key : cache.snapshot().keySet())
+            if (filter.test(key)) cache.remove(key);
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+
+    @NonNull
+    public String getStats() {
+        int expired;
+        synchronized (this) {
+            expired = this.expired;
+        }
+        return String.format(Locale.US, "weight %d/%d, hits %d, misses %d, evictions %d, expired %d",
+            cache.size(), cache.maxSize(), cache.hitCount(), cache.missCount(), cache.evictionCount(), expired);
+    }
+
+    /**
+     * The list is a copy, but the galleries in it are the objects handed to every inspector which
+     * hits the entry. They must be treated as read only: the only change allowed is
+     * {@link com.maxwai.nclientv3.api.components.Gallery#setPageExtension}, whose corrected
+     * extension is right for every holder.
+     */
+    static final class Entry {
+        final List<GenericGallery> galleries;
+        final int pageCount;
+        final long expiresAt;
+        final int weight;
+
+        Entry(List<GenericGallery> galleries, int pageCount, long expiresAt) {
+            this.galleries = Collections.unmodifiableList(new ArrayList<>(galleries));
+            this.pageCount = pageCount;
+            this.expiresAt = expiresAt;
+            int weight = 0;
+            for (GenericGallery gallery : galleries)
+                weight += 1 + Math.max(0, gallery.getPageCount()) / PAGES_PER_WEIGHT;
+            this.weight = Math.max(1, weight);
+        }
+    }
+}
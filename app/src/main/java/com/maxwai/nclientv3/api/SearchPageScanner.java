@@ -0,0 +1,317 @@
+package com.maxwai.nclientv3.api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads the gallery cards of a search page with a single scan of the tags while the page is
+ * downloaded, without building a DOM.
+ * <p>
+ * A card starts at any tag with the class {@code gallery}. Like the Jsoup parser, the first link
+ * gives the id, the first image the thumbnail and the text of the first div the title. The href of
+ * the last tag with the class {@code last} gives the number of pages.
+ * <p>
+ * When a card misses one of its parts or the page has no {@code #content}, {@link #scan()}
+ * returns null and the page must be parsed by Jsoup instead. The text read so far is kept for
+ * that, {@link #getPage()} gives the whole page without downloading it again.
+ */
+final class SearchPageScanner {
+    private static final String CARD_CLASS = "gallery";
+    private static final String LAST_CLASS = "last";
+    private static final String CONTENT_ID = "content";
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] chunk = new char[CHUNK_SIZE];
+    // page text read so far
+    private final StringBuilder buffer = new StringBuilder(2 * CHUNK_SIZE);
+    private boolean exhausted = false;
+
+    SearchPageScanner(@NonNull Reader reader) {
+        this.reader = reader;
+    }
+
+    @Nullable
+    static Result scan(@NonNull Reader reader) throws IOException {
+        return new SearchPageScanner(reader).scan();
+    }
+
+    /**
+     * @return the whole page, the part already scanned followed by the rest of the reader
+     */
+    @NonNull
+    String getPage() throws IOException {
+        while (!exhausted) fill();
+        return buffer.toString();
+    }
+
+    @Nullable
+    Result scan() throws IOException {
+        Result result = new Result();
+        Card card = null;
+        int captionStart = -1;
+        boolean hasContent = false;
+        int pos = 0;
+        while ((pos = find("<", pos)) >= 0 && require(pos + 2)) {
+            if (require(pos + 4) && regionMatches(buffer, pos, "<!--", false)) {
+                int end = find("-->", pos + 4);
+                if (end < 0) break;
+                pos = end + 3;
+                continue;
+            }
+            boolean closing = buffer.charAt(pos + 1) == '/';
+            int nameStart = closing ? pos + 2 : pos + 1;
+            int nameEnd = nameStart;
+            while (require(nameEnd + 1) && isNameChar(buffer.charAt(nameEnd))) nameEnd++;
+            if (nameEnd == nameStart) {
+                // not a tag, like a '<' in the text or a doctype
+                pos++;
+                continue;
+            }
+            String name = buffer.substring(nameStart, nameEnd).toLowerCase(Locale.US);
+            int end = tagEnd(buffer, nameEnd);
+            while (end < 0 && fill()) end = tagEnd(buffer, nameEnd);
+            if (end < 0) break;
+            if (closing) {
+                if (card != null && captionStart >= 0 && name.equals("div")) {
+                    card.title = text(buffer.substring(captionStart, pos));
+                    captionStart = -1;
+                    if (card.isComplete()) card = null;
+                }
+                pos = end + 1;
+                continue;
+            }
+            if (name.equals("script") || name.equals("style")) {
+                // raw text, may contain anything which looks like a tag
+                int close = findIgnoreCase("</" + name, end + 1);
+                if (close < 0) break;
+                pos = close;
+                continue;
+            }
+            String attributes = buffer.substring(nameEnd, end);
+            if (CONTENT_ID.equals(attr(attributes, "id"))) hasContent = true;
+            String classes = attr(attributes, "class");
+            if (hasClass(classes, CARD_CLASS)) {
+                if (card != null) return fail("incomplete card", card);
+                card = new Card(valueOrEmpty(attr(attributes, "data-tags")));
+                result.cards.add(card);
+                captionStart = -1;
+            } else if (card != null) {
+                if (name.equals("a") && card.href == null) {
+                    card.href = valueOrEmpty(attr(attributes, "href"));
+                } else if (name.equals("img") && card.thumbnail == null) {
+                    String src = attr(attributes, "data-src");
+                    card.thumbnail = src != null ? src : valueOrEmpty(attr(attributes, "src"));
+                } else if (name.equals("div") && card.title == null && captionStart < 0) {
+                    captionStart = end + 1;
+                }
+                if (card.isComplete()) card = null;
+            }
+            if (hasClass(classes, LAST_CLASS))
+                result.lastHref = valueOrEmpty(attr(attributes, "href"));
+            pos = end + 1;
+        }
+        if (card != null) return fail("incomplete card", card);
+        if (!hasContent) return fail("no content", null);
+        return result;
+    }
+
+    /**
+     * Reads the next chunk of the page at the end of the buffer
+     *
+     * @return false if the page is over
+     */
+    private boolean fill() throws IOException {
+        if (exhausted) return false;
+        int read = reader.read(chunk);
+        if (read < 0) {
+            exhausted = true;
+            return false;
+        }
+        buffer.append(chunk, 0, read);
+        return true;
+    }
+
+    /**
+     * @return true if the buffer has at least length characters, false if the page is shorter
+     */
+    private boolean require(int length) throws IOException {
+        while (buffer.length() < length)
+            if (!fill()) return false;
+        return true;
+    }
+
+    /**
+     * @return index of target from from on, reading the page until it is found; -1 if it isn't there
+     */
+    private int find(String target, int from) throws IOException {
+        int searchFrom = from;
+        while (true) {
+            int index = buffer.indexOf(target, searchFrom);
+            if (index >= 0) return index;
+            searchFrom = Math.max(from, buffer.length() - target.length() + 1);
+            if (!fill()) return -1;
+        }
+    }
+
+    private int findIgnoreCase(String target, int from) throws IOException {
+        int i = from;
+        while (true) {
+            for (; i <= buffer.length() - target.length(); i++)
+                if (regionMatches(buffer, i, target, true)) return i;
+            if (!fill()) return -1;
+        }
+    }
+
+    @Nullable
+    private static Result fail(String reason, @Nullable Card card) {
+        LogUtility.w("Search page not scanned, " + reason + (card == null ? "" : ": " + card));
+        return null;
+    }
+
+    private static boolean regionMatches(CharSequence text, int offset, String target, boolean ignoreCase) {
+        if (offset + target.length() > text.length()) return false;
+        for (int i = 0; i < target.length(); i++) {
+            char a = text.charAt(offset + i), b = target.charAt(i);
+            if (a != b && (!ignoreCase || Character.toLowerCase(a) != Character.toLowerCase(b)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the '>' closing the tag whose attributes start at from, skipping the quoted
+     * values; -1 if it isn't in text
+     */
+    private static int tagEnd(CharSequence text, int from) {
+        char quote = 0;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the unescaped value of the attribute name, null if missing
+     */
+    @Nullable
+    private static String attr(String attributes, String name) {
+        int to = attributes.length();
+        int i = 0;
+        while (i < to) {
+            while (i < to && (Character.isWhitespace(attributes.charAt(i)) || attributes.charAt(i) == '/')) i++;
+            int keyStart = i;
+            while (i < to && !Character.isWhitespace(attributes.charAt(i)) && attributes.charAt(i) != '=' && attributes.charAt(i) != '/')
+                i++;
+            if (i == keyStart) {
+                i++;
+                continue;
+            }
+            boolean found = attributes.regionMatches(true, keyStart, name, 0, name.length()) && i - keyStart == name.length();
+            while (i < to && Character.isWhitespace(attributes.charAt(i))) i++;
+            if (i >= to || attributes.charAt(i) != '=') {
+                if (found) return "";
+                continue;
+            }
+            i++;
+            while (i < to && Character.isWhitespace(attributes.charAt(i))) i++;
+            int valueStart, valueEnd;
+            if (i < to && (attributes.charAt(i) == '"' || attributes.charAt(i) == '\'')) {
+                char quote = attributes.charAt(i);
+                valueStart = i + 1;
+                valueEnd = attributes.indexOf(quote, valueStart);
+                if (valueEnd < 0) valueEnd = to;
+                i = valueEnd + 1;
+            } else {
+                valueStart = i;
+                while (i < to && !Character.isWhitespace(attributes.charAt(i))) i++;
+                valueEnd = i;
+            }
+            if (found) return Parser.unescapeEntities(attributes.substring(valueStart, valueEnd), true);
+        }
+        return null;
+    }
+
+    private static boolean hasClass(@Nullable String classes, String name) {
+        if (classes == null) return false;
+        for (String c : classes.trim().split("\\s+"))
+            if (c.equalsIgnoreCase(name)) return true;
+        return false;
+    }
+
+    /**
+     * @return the text of an html fragment, normalized like {@link Element#text()}
+     */
+    private static String text(String fragment) {
+        StringBuilder builder = new StringBuilder(fragment.length());
+        int pos = 0;
+        while (pos < fragment.length()) {
+            int open = fragment.indexOf('<', pos);
+            if (open < 0) open = fragment.length();
+            builder.append(fragment, pos, open);
+            if (open == fragment.length()) break;
+            if (fragment.startsWith("<!--", open)) {
+                int end = fragment.indexOf("-->", open + 4);
+                pos = end < 0 ? fragment.length() : end + 3;
+                continue;
+            }
+            int close = tagEnd(fragment, open);
+            pos = close < 0 ? fragment.length() : close + 1;
+        }
+        return Parser.unescapeEntities(builder.toString(), false).trim().replaceAll("\\s+", " ");
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':';
+    }
+
+    private static String valueOrEmpty(@Nullable String value) {
+        return value == null ? "" : value;
+    }
+
+    static final class Result {
+        final List<Card> cards = new ArrayList<>(25);
+        @Nullable
+        String lastHref;
+    }
+
+    /**
+     * The raw values of a card, read the same way by {@link SimpleGallery}
+     */
+    static final class Card {
+        final String tags;
+        String href, thumbnail, title;
+
+        Card(String tags) {
+            this.tags = tags;
+        }
+
+        boolean isComplete() {
+            return href != null && thumbnail != null && title != null;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Card{href=" + href + ", thumbnail=" + thumbnail + ", title=" + title + '}';
+        }
+    }
+}
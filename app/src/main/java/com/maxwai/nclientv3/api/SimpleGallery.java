@@ -17,6 +17,7 @@ import com.maxwai.nclientv3.api.components.TagList;
 import com.maxwai.nclientv3.api.enums.ImageExt;
 import com.maxwai.nclientv3.api.enums.Language;
 import com.maxwai.nclientv3.api.enums.TagStatus;
+import com.maxwai.nclientv3.api.enums.TitleType;
 import com.maxwai.nclientv3.async.database.Queries;
 import com.maxwai.nclientv3.components.classes.Size;
 import com.maxwai.nclientv3.files.GalleryFolder;
@@ -69,22 +70,46 @@ public class SimpleGallery extends GenericGallery {
     }
 
     public SimpleGallery(Context context, Element e) {
-        String temp;
-        String tags = e.attr("data-tags").replace(' ', ',');
-        this.tags = Queries.TagTable.getTagsFromListOfInt(tags);
+        this(context, e.attr("data-tags"),
+            Objects.requireNonNull(e.getElementsByTag("a").first()).attr("href"),
+            thumbnailUrl(Objects.requireNonNull(e.getElementsByTag("img").first())),
+            Objects.requireNonNull(e.getElementsByTag("div").first()).text());
+    }
+
+    /**
+     * Builds the gallery from the raw values of a card, as read by {@link SearchPageScanner}
+     */
+    SimpleGallery(Context context, String tags, String href, String thumbnailUrl, String title) {
+        this.tags = Queries.TagTable.getTagsFromListOfInt(tags.replace(' ', ','));
         language = Gallery.loadLanguage(this.tags);
-        Element a = e.getElementsByTag("a").first();
-        temp = Objects.requireNonNull(a).attr("href");
-        id = Integer.parseInt(temp.substring(3, temp.length() - 1));
-        a = e.getElementsByTag("img").first();
-        temp = Objects.requireNonNull(a).hasAttr("data-src") ? a.attr("data-src") : a.attr("src");
-        mediaId = Integer.parseInt(temp.substring(temp.indexOf("galleries") + 10, temp.lastIndexOf('/')));
-        String extension = temp.substring(temp.indexOf('.', temp.lastIndexOf('/')) + 1);
+        id = Integer.parseInt(href.substring(3, href.length() - 1));
+        mediaId = Integer.parseInt(thumbnailUrl.substring(thumbnailUrl.indexOf("galleries") + 10, thumbnailUrl.lastIndexOf('/')));
+        String extension = thumbnailUrl.substring(thumbnailUrl.indexOf('.', thumbnailUrl.lastIndexOf('/')) + 1);
         thumbnail = Page.stringToExt(extension);
-        title = Objects.requireNonNull(e.getElementsByTag("div").first()).text();
+        this.title = title;
         if (context != null && id > Global.getMaxId()) Global.updateMaxId(context, id);
     }
 
+    /**
+     * Builds the gallery from an entry of the JSON API
+     */
+    SimpleGallery(Context context, GalleryData data) {
+        tags = data.getTags();
+        language = Gallery.loadLanguage(tags);
+        id = data.getId();
+        mediaId = data.getMediaId();
+        thumbnail = data.getThumbnail().getImageExt();
+        String name = data.getTitle(TitleType.ENGLISH);
+        if (name == null || name.isEmpty()) name = data.getTitle(TitleType.JAPANESE);
+        if (name == null || name.isEmpty()) name = data.getTitle(TitleType.PRETTY);
+        title = name == null ? "" : name;
+        if (context != null && id > Global.getMaxId()) Global.updateMaxId(context, id);
+    }
+
+    private static String thumbnailUrl(Element img) {
+        return img.hasAttr("data-src") ? img.attr("data-src") : img.attr("src");
+    }
+
     public SimpleGallery(Gallery gallery) {
         title = gallery.getTitle();
         mediaId = gallery.getMediaId();
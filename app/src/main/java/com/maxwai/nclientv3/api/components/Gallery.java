@@ -30,7 +30,7 @@ import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
@@ -62,11 +62,18 @@ public class Gallery extends GenericGallery {
     private Language language = Language.UNKNOWN;
     private Size maxSize = new Size(0, 0), minSize = new Size(Integer.MAX_VALUE, Integer.MAX_VALUE);
 
-    public Gallery(Context context, String json, Elements related, boolean isFavorite) throws IOException {
-        LogUtility.d("Found JSON: " + json);
-        JsonReader reader = new JsonReader(new StringReader(json));
-        this.related = new ArrayList<>(related.size());
-        for (Element e : related) this.related.add(new SimpleGallery(context, e));
+    /**
+     * @param json the gallery JSON, read once while the gallery is built
+     */
+    public Gallery(Context context, Reader json, Elements related, boolean isFavorite) throws IOException {
+        this(context, new JsonReader(json), toSimpleGalleries(context, related), isFavorite);
+    }
+
+    /**
+     * @param reader positioned on the gallery object, which is consumed
+     */
+    public Gallery(Context context, JsonReader reader, @NonNull List<SimpleGallery> related, boolean isFavorite) throws IOException {
+        this.related = related;
         galleryData = new GalleryData(reader);
         folder = GalleryFolder.fromId(context, galleryData.getId());
         calculateSizes(galleryData);
@@ -236,6 +243,16 @@ public class Gallery extends GenericGallery {
         return related;
     }
 
+    public void setRelated(@NonNull List<SimpleGallery> related) {
+        this.related = related;
+    }
+
+    private static List<SimpleGallery> toSimpleGalleries(Context context, Elements elements) {
+        List<SimpleGallery> galleries = new ArrayList<>(elements.size());
+        for (Element e : elements) galleries.add(new SimpleGallery(context, e));
+        return galleries;
+    }
+
     @Override
     public boolean isValid() {
         return galleryData.isValid();
@@ -1,5 +1,9 @@
 package com.maxwai.nclientv3.api.enums;
 
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+
 public enum ImageExt {
     JPG("jpg"),
     PNG("png"),
@@ -19,4 +23,14 @@ public enum ImageExt {
     public String getName() {
         return name;
     }
+
+    /**
+     * @return the first extension to probe which is not in tried, null if all have been tried
+     */
+    @Nullable
+    public static ImageExt firstNotIn(Collection<ImageExt> tried) {
+        for (ImageExt ext : values())
+            if (!tried.contains(ext)) return ext;
+        return null;
+    }
 }
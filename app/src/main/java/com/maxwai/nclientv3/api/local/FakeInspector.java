@@ -3,6 +3,7 @@ package com.maxwai.nclientv3.api.local;
 import com.maxwai.nclientv3.LocalActivity;
 import com.maxwai.nclientv3.adapters.LocalAdapter;
 import com.maxwai.nclientv3.components.ThreadAsyncTask;
+import com.maxwai.nclientv3.files.FolderIndex;
 import com.maxwai.nclientv3.utility.LogUtility;
 
 import java.io.File;
@@ -53,6 +54,8 @@ public class FakeInspector extends ThreadAsyncTask<LocalActivity, LocalActivity,
     private void createGallery(final File file) {
         LocalGallery lg = new LocalGallery(file, false);
         if (lg.isValid()) {
+            // keeps the index right for folders copied or renamed by hand
+            if (lg.getId() > 0) FolderIndex.put(lg.getId(), file);
             galleries.add(lg);
             if (galleries.size() == 50){
                 localAdapter.addGalleries(galleries);
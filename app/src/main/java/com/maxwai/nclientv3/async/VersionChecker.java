@@ -16,12 +16,11 @@ import com.maxwai.nclientv3.BuildConfig;
 import com.maxwai.nclientv3.R;
 import com.maxwai.nclientv3.settings.Global;
 import com.maxwai.nclientv3.utility.LogUtility;
+import com.maxwai.nclientv3.utility.Utility;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -217,15 +216,7 @@ public class VersionChecker {
                 Global.UPDATEFOLDER.mkdirs();
                 //noinspection ResultOfMethodCallIgnored
                 f.createNewFile();
-                try (FileOutputStream stream = new FileOutputStream(f);
-                     InputStream stream1 = response.body().byteStream()) {
-                    int read;
-                    byte[] bytes = new byte[1024];
-                    while ((read = stream1.read(bytes)) != -1) {
-                        stream.write(bytes, 0, read);
-                    }
-                    stream.flush();
-                }
+                Utility.writeSourceToFile(response.body().source(), f, false, null, true);
                 context.getSharedPreferences("Settings", 0).edit().putBoolean("downloaded", true).apply();
                 installApp(f);
             }
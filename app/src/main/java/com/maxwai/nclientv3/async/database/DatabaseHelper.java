@@ -23,7 +23,7 @@ import java.util.List;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
     static final String DATABASE_NAME = "Entries.db";
-    private static final int DATABASE_VERSION = 13;
+    private static final int DATABASE_VERSION = 15;
     private final Context context;
 
     public DatabaseHelper(Context context1) {
@@ -52,6 +52,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(Queries.ResumeTable.CREATE_TABLE);
         db.execSQL(Queries.StatusTable.CREATE_TABLE);
         db.execSQL(Queries.StatusMangaTable.CREATE_TABLE);
+        db.execSQL(Queries.FolderTable.CREATE_TABLE);
 
     }
     // TODO: 28/10/20 Add search history to DB instead of shared
@@ -91,6 +92,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         if (oldVersion <= 10) db.execSQL(Queries.ResumeTable.CREATE_TABLE);
         if (oldVersion <= 11) updateFavoriteTable(db);
         if (oldVersion <= 12) addStatusTables(db);
+        if (oldVersion <= 13) addPagesColumn(db);
+        if (oldVersion <= 14) db.execSQL(Queries.FolderTable.CREATE_TABLE);
 
     }
 
@@ -113,6 +116,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE Favorite ADD COLUMN `time` INT NOT NULL DEFAULT " + new Date().getTime());
     }
 
+    private void addPagesColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE Downloads ADD COLUMN `pages` BLOB");
+    }
+
     private void addRangeColumn(SQLiteDatabase db) {
         db.execSQL("ALTER TABLE Downloads ADD COLUMN `range_start` INT NOT NULL DEFAULT -1");
         db.execSQL("ALTER TABLE Downloads ADD COLUMN `range_end`   INT NOT NULL DEFAULT -1");
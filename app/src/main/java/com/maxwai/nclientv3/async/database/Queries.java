@@ -10,6 +10,7 @@ import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.collection.SparseArrayCompat;
 
 import com.maxwai.nclientv3.api.InspectorV3;
 import com.maxwai.nclientv3.api.SimpleGallery;
@@ -581,6 +582,7 @@ public class Queries {
         public static final String ID_GALLERY = "id_gallery";
         public static final String RANGE_START = "range_start";
         public static final String RANGE_END = "range_end";
+        public static final String PAGES = "pages";
         public static final String TABLE_NAME = "Downloads";
         /**
          * @noinspection unused
@@ -590,6 +592,7 @@ public class Queries {
             "`id_gallery`  INT NOT NULL PRIMARY KEY , " +
             "`range_start` INT NOT NULL," +
             "`range_end`   INT NOT NULL," +
+            "`pages`       BLOB," +
             "FOREIGN KEY(`id_gallery`) REFERENCES `Gallery`(`idGallery`) ON UPDATE CASCADE ON DELETE CASCADE" +
             "); ";
 
@@ -603,6 +606,23 @@ public class Queries {
             db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
         }
 
+        /**
+         * @param pages the serialized {@link com.maxwai.nclientv3.async.downloader.PageCompletion}
+         */
+        public static void updatePages(int id, byte[] pages) {
+            ContentValues values = new ContentValues(1);
+            values.put(PAGES, pages);
+            db.update(TABLE_NAME, values, ID_GALLERY + "=?", new String[]{"" + id});
+        }
+
+        @Nullable
+        public static byte[] getPages(int id) {
+            try (Cursor c = db.query(TABLE_NAME, new String[]{PAGES}, ID_GALLERY + "=?", new String[]{"" + id}, null, null, null)) {
+                if (!c.moveToFirst() || c.isNull(0)) return null;
+                return c.getBlob(0);
+            }
+        }
+
         public static void removeGallery(int id) {
             boolean favorite = Queries.FavoriteTable.isFavorite(id);
             if (!favorite) Queries.GalleryTable.delete(id);
@@ -962,6 +982,68 @@ public class Queries {
 
     }
 
+    public static class FolderTable {
+        public static final String TABLE_NAME = "Folders";
+        /**
+         * @noinspection unused
+         */
+        public static final String DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
+        static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS `Folders` (" +
+            "`id_gallery` INT NOT NULL PRIMARY KEY , " +
+            "`path` TEXT NOT NULL" +
+            ");";
+        static final String ID_GALLERY = "id_gallery";
+        static final String PATH = "path";
+
+        public static void insert(int id, @NonNull String path) {
+            if (id < 1) return;
+            ContentValues values = new ContentValues(2);
+            values.put(ID_GALLERY, id);
+            values.put(PATH, path);
+            db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+
+        @Nullable
+        public static String getPath(int id) {
+            try (Cursor c = db.query(TABLE_NAME, new String[]{PATH}, ID_GALLERY + "= ?", new String[]{"" + id}, null, null, null)) {
+                if (!c.moveToFirst()) return null;
+                return c.getString(0);
+            }
+        }
+
+        public static void remove(int id) {
+            db.delete(TABLE_NAME, ID_GALLERY + "= ?", new String[]{"" + id});
+        }
+
+        @NonNull
+        public static SparseArrayCompat<String> getAll() {
+            try (Cursor c = db.query(TABLE_NAME, new String[]{ID_GALLERY, PATH}, null, null, null, null, null)) {
+                SparseArrayCompat<String> paths = new SparseArrayCompat<>(c.getCount());
+                while (c.moveToNext()) paths.put(c.getInt(0), c.getString(1));
+                return paths;
+            }
+        }
+
+        /**
+         * Replaces the whole index in a single transaction
+         */
+        public static void replaceAll(@NonNull SparseArrayCompat<String> paths) {
+            db.beginTransaction();
+            try {
+                db.delete(TABLE_NAME, null, null);
+                ContentValues values = new ContentValues(2);
+                for (int i = 0; i < paths.size(); i++) {
+                    values.put(ID_GALLERY, paths.keyAt(i));
+                    values.put(PATH, paths.valueAt(i));
+                    db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
     public static class StatusMangaTable {
         public static final String TABLE_NAME = "StatusManga";
         /**
@@ -0,0 +1,263 @@
+package com.maxwai.nclientv3.async.downloader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Parcel;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.maxwai.nclientv3.api.InspectorV3;
+import com.maxwai.nclientv3.api.SimpleGallery;
+import com.maxwai.nclientv3.api.components.GenericGallery;
+import com.maxwai.nclientv3.files.FolderIndex;
+import com.maxwai.nclientv3.utility.AppExecutors;
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks every result page of a search and queues all the galleries found.
+ * <p>
+ * Pages are fetched a few at a time, galleries already queued or already downloaded are
+ * skipped. After every batch the next page and the ids not yet saved in the database are
+ * persisted, so the crawl continues where it stopped if the process gets killed.
+ */
+public class BulkDownloadWorker extends Worker {
+    private static final String UNIQUE_WORK_NAME = "BulkDownload";
+    private static final String PREFERENCES_NAME = "BulkDownload";
+    private static final String KEY_INSPECTOR = "inspector";
+    private static final String KEY_NEXT_PAGE = "next_page";
+    private static final String KEY_PAGE_COUNT = "page_count";
+    private static final String KEY_PENDING = "pending";
+    private static final int CONCURRENT_PAGES = 3;
+
+    public BulkDownloadWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Replaces the running crawl, if any, with a crawl of every page of inspector
+     */
+    public static void start(@NonNull Context context, @NonNull InspectorV3 inspector) {
+        Parcel parcel = Parcel.obtain();
+        String data;
+        try {
+            inspector.cloneInspector(context, null).writeToParcel(parcel, 0);
+            data = Base64.encodeToString(parcel.marshall(), Base64.NO_WRAP);
+        } finally {
+            parcel.recycle();
+        }
+        getPreferences(context).edit()
+            .clear()
+            .putString(KEY_INSPECTOR, data)
+            .putInt(KEY_NEXT_PAGE, 1)
+            .putInt(KEY_PAGE_COUNT, -1)
+            .commit();
+        enqueue(context, ExistingWorkPolicy.REPLACE);
+    }
+
+    /**
+     * Restarts an interrupted crawl, does nothing if there is none
+     */
+    public static void resume(@NonNull Context context) {
+        if (getPreferences(context).contains(KEY_INSPECTOR))
+            enqueue(context, ExistingWorkPolicy.KEEP);
+    }
+
+    private static void enqueue(Context context, ExistingWorkPolicy policy) {
+        Constraints constraints = new Constraints.Builder()
+            .setRequiredNetworkType(NetworkType.CONNECTED)
+            .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BulkDownloadWorker.class)
+            .setConstraints(constraints)
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
+            .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(UNIQUE_WORK_NAME, policy, request);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, 0);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        SharedPreferences preferences = getPreferences(context);
+        InspectorV3 inspector = readInspector(preferences.getString(KEY_INSPECTOR, null));
+        if (inspector == null) {
+            preferences.edit().clear().apply();
+            return Result.success();
+        }
+        int nextPage = preferences.getInt(KEY_NEXT_PAGE, 1);
+        int pageCount = preferences.getInt(KEY_PAGE_COUNT, -1);
+        Set<Integer> known = collectKnownIds();
+        Set<Integer> pending = readPending(preferences.getString(KEY_PENDING, ""));
+        // ids found before being killed, they may have never reached the database
+        List<GalleryDownloaderManager> restored = new ArrayList<>(pending.size());
+        for (int id : pending) addManager(context, restored, null, id, known);
+        queueAll(context, restored);
+        ExecutorService pool = AppExecutors.newFixedPool("crawler", CONCURRENT_PAGES);
+        try {
+            while (!isStopped() && (pageCount < 0 || nextPage <= pageCount)) {
+                // the first page is alone, it tells how many pages there are
+                int pages = pageCount < 0 ? 1 : Math.min(CONCURRENT_PAGES, pageCount - nextPage + 1);
+                List<Future<InspectorV3>> results = new ArrayList<>(pages);
+                for (int i = 0; i < pages; i++) {
+                    int page = nextPage + i;
+                    results.add(pool.submit(() -> fetchPage(context, inspector, page)));
+                }
+                for (Future<InspectorV3> future : results) {
+                    InspectorV3 result = future.get();
+                    // cursor is untouched, the whole batch is fetched again on retry
+                    if (result == null) return Result.retry();
+                    pageCount = Math.max(pageCount, result.getPageCount());
+                    List<GalleryDownloaderManager> found = new ArrayList<>(result.getGalleries().size());
+                    for (GenericGallery gallery : result.getGalleries()) {
+                        SimpleGallery simple = gallery instanceof SimpleGallery ? (SimpleGallery) gallery : null;
+                        if (addManager(context, found, simple, gallery.getId(), known))
+                            pending.add(gallery.getId());
+                    }
+                    queueAll(context, found);
+                }
+                nextPage += pages;
+                prunePending(pending);
+                preferences.edit()
+                    .putInt(KEY_NEXT_PAGE, nextPage)
+                    .putInt(KEY_PAGE_COUNT, pageCount)
+                    .putString(KEY_PENDING, writePending(pending))
+                    .commit();
+                LogUtility.d("Bulk download: " + (nextPage - 1) + "/" + pageCount + " pages");
+            }
+        } catch (ExecutionException e) {
+            LogUtility.w("Bulk download page failed", e);
+            return Result.retry();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        } finally {
+            pool.shutdownNow();
+        }
+        if (isStopped()) return Result.success();
+        prunePending(pending);
+        // keep the state while some ids are only in memory, loadDownloads resumes it
+        if (pending.isEmpty()) preferences.edit().clear().apply();
+        else preferences.edit().putString(KEY_PENDING, writePending(pending)).apply();
+        return Result.success();
+    }
+
+    @Nullable
+    private static InspectorV3 fetchPage(Context context, InspectorV3 base, int page) {
+        InspectorV3 inspector = base.cloneInspector(context, null);
+        inspector.setPage(page);
+        try {
+            if (!inspector.createDocument()) return null;
+            inspector.parseDocument();
+            return inspector.getGalleries() == null ? null : inspector;
+        } catch (Exception e) {
+            LogUtility.w("Unable to fetch page " + page, e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds to managers the download of the gallery, unless it is already queued or downloaded
+     *
+     * @return true if a manager has been added
+     */
+    private static boolean addManager(Context context, List<GalleryDownloaderManager> managers, @Nullable SimpleGallery gallery, int id, Set<Integer> known) {
+        if (id < 1 || !known.add(id) || DownloadQueue.findManager(id) != null) return false;
+        if (FolderIndex.isDownloaded(context, id)) return false;
+        managers.add(gallery != null
+            ? new GalleryDownloaderManager(context, gallery.getTitle(), gallery.getThumbnail(), id)
+            : new GalleryDownloaderManager(context, null, null, id));
+        return true;
+    }
+
+    /**
+     * Queues the galleries of a page together and wakes the download worker once
+     */
+    private static void queueAll(Context context, List<GalleryDownloaderManager> managers) {
+        if (managers.isEmpty()) return;
+        // behind anything the user queued by hand
+        DownloadQueue.addAll(managers, DownloadQueue.Priority.LOW);
+        DownloadGalleryV2.startWork(context);
+    }
+
+    /**
+     * Drops the ids which don't need to be remembered anymore: their metadata is in the
+     * database or they left the queue
+     */
+    private static void prunePending(Set<Integer> pending) {
+        pending.removeIf(id -> {
+            GalleryDownloaderManager manager = DownloadQueue.findManager(id);
+            return manager == null || manager.downloader().hasData();
+        });
+    }
+
+    @NonNull
+    private static Set<Integer> collectKnownIds() {
+        Set<Integer> ids = new HashSet<>();
+        for (GalleryDownloaderV2 downloader : DownloadQueue.getDownloaders())
+            ids.add(downloader.getId());
+        return ids;
+    }
+
+    @Nullable
+    private static InspectorV3 readInspector(@Nullable String data) {
+        if (data == null) return null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            byte[] bytes = Base64.decode(data, Base64.NO_WRAP);
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return InspectorV3.CREATOR.createFromParcel(parcel);
+        } catch (RuntimeException e) {
+            // saved by an incompatible version
+            LogUtility.w("Unable to restore bulk download", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @NonNull
+    private static Set<Integer> readPending(String data) {
+        Set<Integer> ids = new HashSet<>();
+        for (String id : data.split(",")) {
+            if (id.isEmpty()) continue;
+            try {
+                ids.add(Integer.parseInt(id));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return ids;
+    }
+
+    @NonNull
+    private static String writePending(Set<Integer> ids) {
+        StringBuilder builder = new StringBuilder();
+        for (int id : ids) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(id);
+        }
+        return builder.toString();
+    }
+}
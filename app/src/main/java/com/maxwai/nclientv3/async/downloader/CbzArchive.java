@@ -0,0 +1,331 @@
+package com.maxwai.nclientv3.async.downloader;
+
+import androidx.annotation.NonNull;
+
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.LogUtility;
+import com.maxwai.nclientv3.utility.Utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import okio.BufferedSource;
+
+/**
+ * Uncompressed zip archive the pages of a gallery are appended to while they are downloaded.
+ * <p>
+ * Every page is a stored entry with its size and checksum in the local header, so the entries
+ * alone describe the archive. A page streamed from the network is written after a header
+ * marked as pending, which is replaced by the real one once the page is complete. When an existing archive is opened its local headers are walked
+ * and whatever follows the last complete entry, the old central directory or a page cut by a
+ * crash, is overwritten by the next page. {@link #finish()} writes the central directory again,
+ * it is called every time the download is paused or completed.
+ * <p>
+ * The first entry is an empty {@code .<id>} file, like the one in a download folder, so an
+ * archive left by another gallery with the same title is never resumed.
+ */
+class CbzArchive {
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_RECORD_SIZE = 22;
+    private static final int VERSION = 10;
+    private static final int FLAG_UTF8 = 0x0800;
+    // sizes and checksum not known yet, the entry is still being written
+    private static final int FLAG_PENDING = 0x0008;
+    private static final int METHOD_STORED = 0;
+    // zip64 is not written, offsets and entries must fit the classic format
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long dataEnd = 0;
+    private boolean deleted = false;
+
+    CbzArchive(@NonNull File file, int id) throws IOException {
+        this.file = file;
+        if (file.exists()) recover();
+        if (entries.isEmpty()) addEmpty("." + id);
+    }
+
+    /**
+     * @return the id of the gallery the archive belongs to, -1 if it has no id entry
+     */
+    static int readId(@NonNull File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (readFully(channel, header, 0) < LOCAL_HEADER_SIZE || header.getInt(0) != LOCAL_SIGNATURE)
+                return -1;
+            ByteBuffer name = ByteBuffer.allocate(header.getShort(26) & 0xFFFF);
+            if (readFully(channel, name, LOCAL_HEADER_SIZE) < name.capacity()) return -1;
+            String first = new String(name.array(), StandardCharsets.UTF_8);
+            return GalleryDownloaderV2.ID_FILE.matcher(first).matches() ? Integer.parseInt(first.substring(1)) : -1;
+        } catch (IOException e) {
+            LogUtility.w("Unable to read archive " + file, e);
+            return -1;
+        }
+    }
+
+    @NonNull
+    File getFile() {
+        return file;
+    }
+
+    synchronized boolean contains(@NonNull String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Appends the content of page as a new entry, it is on disk when this method returns
+     *
+     * @param crc CRC32 of the content of page
+     */
+    synchronized void append(@NonNull String name, @NonNull File page, int crc) throws IOException {
+        if (deleted) throw new IOException("Archive deleted: " + file);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long size = page.length();
+        long offset = dataEnd;
+        long dataStart = offset + LOCAL_HEADER_SIZE + nameBytes.length;
+        if (dataStart + size > MAX_OFFSET || entries.size() >= MAX_ENTRIES)
+            throw new IOException("Archive too big: " + file);
+        Entry entry = new Entry(nameBytes, offset, size, crc, dosDateTime(System.currentTimeMillis()));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileInputStream in = new FileInputStream(page)) {
+            FileChannel channel = raf.getChannel();
+            // drops the central directory and anything left by an interrupted append
+            channel.truncate(offset);
+            writeFully(channel, localHeader(entry, 0), offset);
+            FileChannel source = in.getChannel();
+            long copied = 0;
+            channel.position(dataStart);
+            while (copied < size) {
+                long count = source.transferTo(copied, size - copied, channel);
+                if (count <= 0) throw new IOException("Page truncated while archiving: " + page);
+                copied += count;
+            }
+            channel.force(false);
+        }
+        entries.put(name, entry);
+        dataEnd = dataStart + size;
+    }
+
+    /**
+     * Streams source into a new entry, it is on disk when this method returns. The page is
+     * checked like a downloaded file and dropped if it is truncated or not a valid image.
+     *
+     * @param expectedLength bytes source should give, -1 if unknown
+     * @return the size of the entry, -1 if the page has been dropped
+     */
+    synchronized long write(@NonNull String name, @NonNull BufferedSource source, long expectedLength) throws IOException {
+        if (deleted) throw new IOException("Archive deleted: " + file);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long offset = dataEnd;
+        long dataStart = offset + LOCAL_HEADER_SIZE + nameBytes.length;
+        if (dataStart + Math.max(0, expectedLength) > MAX_OFFSET || entries.size() >= MAX_ENTRIES)
+            throw new IOException("Archive too big: " + file);
+        int dosTime = dosDateTime(System.currentTimeMillis());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            // drops the central directory and anything left by an interrupted write
+            channel.truncate(offset);
+            writeFully(channel, localHeader(new Entry(nameBytes, offset, 0, 0, dosTime), FLAG_PENDING), offset);
+        }
+        CRC32 crc = new CRC32();
+        long size = Utility.writeSourceToFile(source, file, true, crc, false);
+        Entry entry = new Entry(nameBytes, offset, size, (int) crc.getValue(), dosTime);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            if ((expectedLength >= 0 && size != expectedLength) || dataStart + size > MAX_OFFSET
+                || Global.isImageCorrupted(raf, dataStart)) {
+                LogUtility.w("Dropping page " + name + " of " + file + ", " + size + " bytes");
+                channel.truncate(offset);
+                return -1;
+            }
+            writeFully(channel, localHeader(entry, 0), offset);
+            channel.force(false);
+        }
+        entries.put(name, entry);
+        dataEnd = dataStart + size;
+        return size;
+    }
+
+    private void addEmpty(String name) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        Entry entry = new Entry(nameBytes, dataEnd, 0, 0, dosDateTime(System.currentTimeMillis()));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(dataEnd);
+            writeFully(channel, localHeader(entry, 0), dataEnd);
+            channel.force(false);
+        }
+        entries.put(name, entry);
+        dataEnd += LOCAL_HEADER_SIZE + nameBytes.length;
+    }
+
+    /**
+     * Writes the central directory after the last entry, leaving a valid archive
+     */
+    synchronized void finish() throws IOException {
+        if (deleted || (entries.isEmpty() && !file.exists())) return;
+        ByteBuffer buffer = ByteBuffer.allocate(centralDirectorySize() + END_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (Entry entry : entries.values()) {
+            buffer.putInt(CENTRAL_SIGNATURE)
+                .putShort((short) VERSION) // made by
+                .putShort((short) VERSION) // needed to extract
+                .putShort((short) FLAG_UTF8)
+                .putShort((short) METHOD_STORED)
+                .putInt(entry.dosTime)
+                .putInt(entry.crc)
+                .putInt((int) entry.size) // compressed
+                .putInt((int) entry.size) // uncompressed
+                .putShort((short) entry.name.length)
+                .putShort((short) 0) // extra
+                .putShort((short) 0) // comment
+                .putShort((short) 0) // disk
+                .putShort((short) 0) // internal attributes
+                .putInt(0) // external attributes
+                .putInt((int) entry.offset)
+                .put(entry.name);
+        }
+        int directorySize = buffer.position();
+        buffer.putInt(END_SIGNATURE)
+            .putShort((short) 0) // this disk
+            .putShort((short) 0) // directory disk
+            .putShort((short) entries.size())
+            .putShort((short) entries.size())
+            .putInt(directorySize)
+            .putInt((int) dataEnd)
+            .putShort((short) 0); // comment
+        buffer.flip();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(dataEnd);
+            writeFully(channel, buffer, dataEnd);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Removes the archive, later appends fail
+     */
+    synchronized void delete() {
+        deleted = true;
+        entries.clear();
+        dataEnd = 0;
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Rebuilds the entry list from the local headers, stopping at the first one which is
+     * missing, incomplete or not written by this class
+     */
+    private void recover() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = 0;
+            while (offset + LOCAL_HEADER_SIZE <= length) {
+                header.clear();
+                if (readFully(channel, header, offset) < LOCAL_HEADER_SIZE) break;
+                if (header.getInt(0) != LOCAL_SIGNATURE || header.getShort(8) != METHOD_STORED) break;
+                // a page cut while it was streamed
+                if ((header.getShort(6) & FLAG_PENDING) != 0) break;
+                int dosTime = header.getInt(10);
+                int crc = header.getInt(14);
+                long size = header.getInt(18) & MAX_OFFSET;
+                int nameLength = header.getShort(26) & 0xFFFF;
+                int extraLength = header.getShort(28) & 0xFFFF;
+                long end = offset + LOCAL_HEADER_SIZE + nameLength + extraLength + size;
+                if (end > length) break;
+                ByteBuffer name = ByteBuffer.allocate(nameLength);
+                if (readFully(channel, name, offset + LOCAL_HEADER_SIZE) < nameLength) break;
+                Entry entry = new Entry(name.array(), offset, size, crc, dosTime);
+                entries.put(new String(entry.name, StandardCharsets.UTF_8), entry);
+                offset = end;
+            }
+            dataEnd = offset;
+            LogUtility.d("Archive " + file + " has " + entries.size() + " pages, " + (length - offset) + " trailing bytes");
+        }
+    }
+
+    private int centralDirectorySize() {
+        int size = 0;
+        for (Entry entry : entries.values())
+            size += CENTRAL_HEADER_SIZE + entry.name.length;
+        return size;
+    }
+
+    private static ByteBuffer localHeader(Entry entry, int flags) {
+        ByteBuffer buffer = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.name.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(LOCAL_SIGNATURE)
+            .putShort((short) VERSION)
+            .putShort((short) (FLAG_UTF8 | flags))
+            .putShort((short) METHOD_STORED)
+            .putInt(entry.dosTime)
+            .putInt(entry.crc)
+            .putInt((int) entry.size) // compressed
+            .putInt((int) entry.size) // uncompressed
+            .putShort((short) entry.name.length)
+            .putShort((short) 0) // extra
+            .put(entry.name);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * @return time and date packed in the MS-DOS format used by zip headers
+     */
+    private static int dosDateTime(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        int year = Math.max(1980, calendar.get(Calendar.YEAR));
+        int date = ((year - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+        int time = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+        return (date << 16) | time;
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        final long offset, size;
+        final int crc, dosTime;
+
+        Entry(byte[] name, long offset, long size, int crc, int dosTime) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.crc = crc;
+            this.dosTime = dosTime;
+        }
+    }
+}
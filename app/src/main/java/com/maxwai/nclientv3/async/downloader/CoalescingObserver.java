@@ -0,0 +1,121 @@
+package com.maxwai.nclientv3.async.downloader;
+
+import androidx.annotation.NonNull;
+
+import com.maxwai.nclientv3.utility.AppExecutors;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps an observer so it receives at most a given number of progress events per second
+ * for every gallery. Updates arriving in between are merged into the latest one, which is
+ * delivered when the interval expires. Start and terminal events are delivered at once and
+ * drop the pending update, so a stale progress never arrives after end, cancel, pause or failure.
+ */
+public class CoalescingObserver implements DownloadObserver {
+    private final DownloadObserver delegate;
+    private final long intervalMs;
+    private final Map<GalleryDownloaderV2, State> states = new ConcurrentHashMap<>();
+
+    public CoalescingObserver(@NonNull DownloadObserver delegate, int maxEventsPerSecond) {
+        this.delegate = delegate;
+        this.intervalMs = 1000L / Math.max(1, maxEventsPerSecond);
+    }
+
+    @NonNull
+    private State state(GalleryDownloaderV2 downloader) {
+        return states.computeIfAbsent(downloader, d -> new State());
+    }
+
+    @Override
+    public void triggerStartDownload(GalleryDownloaderV2 downloader) {
+        State state = state(downloader);
+        synchronized (state) {
+            state.pending = false;
+            delegate.triggerStartDownload(downloader);
+        }
+    }
+
+    @Override
+    public void triggerUpdateProgress(GalleryDownloaderV2 downloader, int reach, int total) {
+        State state = state(downloader);
+        synchronized (state) {
+            state.reach = reach;
+            state.total = total;
+            long wait = state.lastDelivery + intervalMs - System.currentTimeMillis();
+            if (wait <= 0 && !state.pending) {
+                deliver(downloader, state);
+                return;
+            }
+            if (state.pending) return;
+            state.pending = true;
+            AppExecutors.scheduler().schedule(() -> flush(downloader, state), Math.max(0, wait), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush(GalleryDownloaderV2 downloader, State state) {
+        synchronized (state) {
+            // a terminal event may have arrived in the meantime
+            if (!state.pending) return;
+            state.pending = false;
+            deliver(downloader, state);
+        }
+    }
+
+    private void deliver(GalleryDownloaderV2 downloader, State state) {
+        state.lastDelivery = System.currentTimeMillis();
+        delegate.triggerUpdateProgress(downloader, state.reach, state.total);
+    }
+
+    @Override
+    public void triggerEndDownload(GalleryDownloaderV2 downloader) {
+        State state = states.remove(downloader);
+        if (state == null) {
+            delegate.triggerEndDownload(downloader);
+            return;
+        }
+        synchronized (state) {
+            state.pending = false;
+            delegate.triggerEndDownload(downloader);
+        }
+    }
+
+    @Override
+    public void triggerCancelDownload(GalleryDownloaderV2 downloader) {
+        State state = states.remove(downloader);
+        if (state == null) {
+            delegate.triggerCancelDownload(downloader);
+            return;
+        }
+        synchronized (state) {
+            state.pending = false;
+            delegate.triggerCancelDownload(downloader);
+        }
+    }
+
+    @Override
+    public void triggerPauseDownload(GalleryDownloaderV2 downloader) {
+        State state = state(downloader);
+        synchronized (state) {
+            state.pending = false;
+            delegate.triggerPauseDownload(downloader);
+        }
+    }
+
+    @Override
+    public void triggerFailDownload(GalleryDownloaderV2 downloader) {
+        State state = state(downloader);
+        synchronized (state) {
+            state.pending = false;
+            delegate.triggerFailDownload(downloader);
+        }
+    }
+
+    private static class State {
+        private boolean pending;
+        private long lastDelivery;
+        private int reach, total;
+    }
+}
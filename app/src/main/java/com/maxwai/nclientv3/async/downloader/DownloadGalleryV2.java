@@ -1,13 +1,18 @@
 package com.maxwai.nclientv3.async.downloader;
 
+import android.app.Notification;
 import android.content.Context;
+import android.content.pm.ServiceInfo;
 import android.net.Uri;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
 import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
 import androidx.work.ExistingWorkPolicy;
+import androidx.work.ForegroundInfo;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.WorkManager;
@@ -15,22 +20,47 @@ import androidx.work.WorkRequest;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.maxwai.nclientv3.R;
 import com.maxwai.nclientv3.api.SimpleGallery;
 import com.maxwai.nclientv3.api.components.Gallery;
 import com.maxwai.nclientv3.api.components.GenericGallery;
 import com.maxwai.nclientv3.async.database.Queries;
+import com.maxwai.nclientv3.settings.Global;
 import com.maxwai.nclientv3.settings.NotificationSettings;
+import com.maxwai.nclientv3.utility.AppExecutors;
 import com.maxwai.nclientv3.utility.LogUtility;
-import com.maxwai.nclientv3.utility.Utility;
+import com.maxwai.nclientv3.utility.network.BandwidthLimiter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class DownloadGalleryV2 extends Worker {
-    private static final ReentrantLock lock = new ReentrantLock();
     private static final String UNIQUE_WORK_NAME = "DownloadGalleryV2";
+    private static final long SLOT_POLL_MS = 1000;
+    private static final int METADATA_CONCURRENCY = 3;
+    private static final long STOP_TIMEOUT_MS = 10_000;
+    /**
+     * Galleries currently owned by a slot, shared so a worker restarted by WorkManager
+     * never picks a gallery still being downloaded by the previous one
+     */
+    private static final Set<GalleryDownloaderManager> running = new HashSet<>();
+    private final int notificationId = NotificationSettings.getNotificationId();
+    private final Set<GalleryDownloaderManager> failed = new HashSet<>();
+    /**
+     * Galleries without room on any volume, tried again when a running one frees its reservation
+     */
+    private final Set<GalleryDownloaderManager> heldForSpace = new HashSet<>();
+    /**
+     * Metadata stage bookkeeping, guarded by {@link #running} like the page stage
+     */
+    private final Set<GalleryDownloaderV2> fetchingData = new HashSet<>();
+    private final Set<GalleryDownloaderV2> missingData = new HashSet<>();
 
     public DownloadGalleryV2(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
@@ -72,6 +102,7 @@ public class DownloadGalleryV2 extends Worker {
             }
             new PageChecker().start();
             startWork(context);
+            BulkDownloadWorker.resume(context);
         } catch (IOException e) {
             LogUtility.e(e, e);
         }
@@ -97,27 +128,202 @@ public class DownloadGalleryV2 extends Worker {
     @NonNull
     @Override
     public Result doWork() {
-        lock.lock();
+        promoteToForeground();
+        if (DownloadQueue.fetch() == null) reloadQueueFromDatabase();
+        int slots = Global.getDownloadGallerySlots();
+        // two stages: metadata is fetched in the background while the slots download
+        // the pages of the galleries which already have it
+        ExecutorService metadataPool = AppExecutors.newFixedPool("metadata", METADATA_CONCURRENCY);
+        ExecutorService pool = AppExecutors.newFixedPool("gallery", slots);
         try {
-            obtainData();
-            GalleryDownloaderManager entry = DownloadQueue.fetch();
-            if (entry == null) {
-                reloadQueueFromDatabase();
-                obtainData();
-                entry = DownloadQueue.fetch();
-            }
-            if (entry != null) {
-                LogUtility.d("Downloading: " + entry.downloader().getId());
-                if (entry.downloader().downloadGalleryData()) {
-                    entry.downloader().download();
+            while (!isStopped()) {
+                GalleryDownloaderManager entry;
+                synchronized (running) {
+                    prefetchData(metadataPool, slots);
+                    if (running.size() >= slots) {
+                        running.wait(SLOT_POLL_MS);
+                        continue;
+                    }
+                    entry = nextEntry();
+                    if (entry == null) {
+                        if (running.isEmpty() && fetchingData.isEmpty()) {
+                            pauseHeld();
+                            break;
+                        }
+                        // woken up when a slot is freed or when metadata arrives
+                        running.wait(SLOT_POLL_MS);
+                        continue;
+                    }
+                    running.add(entry);
                 }
+                pool.execute(() -> downloadEntry(entry));
             }
+        } catch (InterruptedException e) {
+            LogUtility.w("Download worker interrupted", e);
+            Thread.currentThread().interrupt();
         } finally {
-            lock.unlock();
+            metadataPool.shutdownNow();
+            pool.shutdown();
+        }
+        if (isStopped() && stopRunning(pool)) return Result.retry();
+        if (BandwidthLimiter.getInstance().isBudgetExhausted() && DownloadQueue.fetch(failed) != null) {
+            // the queue is left as it is, the worker comes back with its backoff until there is budget again
+            LogUtility.d("Daily budget reached, downloads postponed");
+            return Result.retry();
         }
         return Result.success();
     }
 
+    /**
+     * WorkManager stopped the worker: the galleries still downloading are paused, which cancels
+     * their requests, and queued again once their slot returned so the next worker resumes them.
+     * Only the galleries paused here are queued again, those the user paused stay paused.
+     *
+     * @return true if some galleries were left unfinished
+     */
+    private boolean stopRunning(ExecutorService pool) {
+        List<GalleryDownloaderManager> stopped = new ArrayList<>();
+        synchronized (running) {
+            for (GalleryDownloaderManager entry : running) {
+                GalleryDownloaderV2.Status status = entry.downloader().getStatus();
+                if (status == GalleryDownloaderV2.Status.DOWNLOADING || status == GalleryDownloaderV2.Status.NOT_STARTED)
+                    stopped.add(entry);
+            }
+        }
+        for (GalleryDownloaderManager entry : stopped)
+            entry.downloader().setStatus(GalleryDownloaderV2.Status.PAUSED);
+        try {
+            if (!pool.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LogUtility.w("Gallery slots still running after " + STOP_TIMEOUT_MS + " ms");
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (GalleryDownloaderManager entry : stopped)
+            if (entry.downloader().getStatus() == GalleryDownloaderV2.Status.PAUSED)
+                entry.downloader().setStatus(GalleryDownloaderV2.Status.NOT_STARTED);
+        return !stopped.isEmpty() || DownloadQueue.fetch() != null;
+    }
+
+    /**
+     * @return the next gallery to download, null if none is ready or today's budget is used up
+     */
+    @Nullable
+    private GalleryDownloaderManager nextEntry() {
+        if (BandwidthLimiter.getInstance().isBudgetExhausted()) return null;
+        Set<GalleryDownloaderManager> skip = new HashSet<>(running);
+        skip.addAll(failed);
+        skip.addAll(heldForSpace);
+        GalleryDownloaderManager entry;
+        StorageAdmission admission = StorageAdmission.getInstance();
+        while ((entry = DownloadQueue.fetchReady(skip)) != null) {
+            if (admission.admit(getApplicationContext(), entry.downloader())) return entry;
+            heldForSpace.add(entry);
+            skip.add(entry);
+        }
+        return null;
+    }
+
+    /**
+     * Nothing is running which could free space, the held galleries are paused so the user
+     * can resume them after making room
+     */
+    private void pauseHeld() {
+        for (GalleryDownloaderManager entry : heldForSpace) {
+            LogUtility.w("Pausing " + entry.downloader().getId() + ", not enough space");
+            entry.downloader().setStatus(GalleryDownloaderV2.Status.PAUSED);
+        }
+        heldForSpace.clear();
+    }
+
+    /**
+     * Queues the metadata requests of the next galleries, so about as many are ready as there
+     * are free slots; must be called holding the {@link #running} lock
+     */
+    private void prefetchData(ExecutorService metadataPool, int slots) {
+        // galleries already taken or skipped by nextEntry() don't count as ready
+        Set<GalleryDownloaderV2> busy = new HashSet<>();
+        for (GalleryDownloaderManager entry : running) busy.add(entry.downloader());
+        for (GalleryDownloaderManager entry : failed) busy.add(entry.downloader());
+        for (GalleryDownloaderManager entry : heldForSpace) busy.add(entry.downloader());
+        // at least one ahead, so a freed slot doesn't wait for the metadata
+        int wanted = Math.max(1, slots - running.size());
+        int ready = 0;
+        for (GalleryDownloaderV2 downloader : DownloadQueue.getDownloaders()) {
+            if (ready >= wanted) break;
+            // paused, failed or finished galleries are not downloaded, their data can wait
+            if (!downloader.canBeFetched() || busy.contains(downloader)) continue;
+            // a gallery whose data can't be fetched is not retried until the next run
+            if (missingData.contains(downloader)) continue;
+            ready++;
+            if (downloader.hasData() || fetchingData.contains(downloader)) continue;
+            fetchingData.add(downloader);
+            metadataPool.execute(() -> fetchData(downloader));
+        }
+    }
+
+    private void fetchData(GalleryDownloaderV2 downloader) {
+        boolean success = false;
+        try {
+            success = downloader.downloadGalleryData();
+        } catch (RuntimeException e) {
+            LogUtility.e("Error while fetching data of " + downloader.getId(), e);
+        } finally {
+            synchronized (running) {
+                fetchingData.remove(downloader);
+                if (!success) missingData.add(downloader);
+                running.notifyAll();
+            }
+        }
+    }
+
+    private void downloadEntry(GalleryDownloaderManager entry) {
+        boolean success = false;
+        try {
+            LogUtility.d("Downloading: " + entry.downloader().getId());
+            if (entry.downloader().downloadGalleryData()) {
+                entry.downloader().download();
+                success = true;
+            }
+        } catch (RuntimeException e) {
+            LogUtility.e("Error while downloading " + entry.downloader().getId(), e);
+        } finally {
+            StorageAdmission.getInstance().release(entry.downloader());
+            synchronized (running) {
+                running.remove(entry);
+                // don't retry galleries without metadata until the next run
+                if (!success) failed.add(entry);
+                // the space reserved by this gallery may be enough for them now
+                heldForSpace.clear();
+                running.notifyAll();
+            }
+        }
+    }
+
+    private void promoteToForeground() {
+        Context context = getApplicationContext();
+        Notification notification = new NotificationCompat.Builder(context, Global.CHANNEL_ID1)
+            .setOnlyAlertOnce(true)
+            .setOngoing(true)
+            .setSmallIcon(R.drawable.ic_file)
+            .setContentTitle(context.getString(R.string.download_engine_running))
+            .build();
+        ForegroundInfo info;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            info = new ForegroundInfo(notificationId, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        else
+            info = new ForegroundInfo(notificationId, notification);
+        try {
+            setForegroundAsync(info).get();
+        } catch (ExecutionException | IllegalStateException e) {
+            // background start restrictions, keep going as a normal worker
+            LogUtility.w("Unable to promote download worker to foreground", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void reloadQueueFromDatabase() {
         try {
             List<GalleryDownloaderManager> entries = Queries.DownloadTable.getAllDownloads(getApplicationContext());
@@ -130,14 +336,4 @@ public class DownloadGalleryV2 extends Worker {
         }
     }
 
-    private void obtainData() {
-        GalleryDownloaderV2 downloader = DownloadQueue.fetchForData();
-        while (downloader != null) {
-            downloader.downloadGalleryData();
-            Utility.threadSleep(100);
-            downloader = DownloadQueue.fetchForData();
-        }
-    }
-
-
 }
@@ -10,4 +10,12 @@ public interface DownloadObserver {
     void triggerCancelDownload(GalleryDownloaderV2 downloader);
 
     void triggerPauseDownload(GalleryDownloaderV2 downloader);
+
+    /**
+     * The download stopped because of an error, {@link GalleryDownloaderV2#getError()} tells why.
+     * Handled like a pause unless overridden.
+     */
+    default void triggerFailDownload(GalleryDownloaderV2 downloader) {
+        triggerPauseDownload(downloader);
+    }
 }
@@ -1,70 +1,206 @@
 package com.maxwai.nclientv3.async.downloader;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArraySet;
 
+/**
+ * Queue of the galleries to download.
+ * <p>
+ * Managers are indexed by gallery id and kept in one deque per {@link Priority}; the
+ * download order is every HIGH entry, then every NORMAL entry, then every LOW entry.
+ * Readers work on an immutable snapshot which is rebuilt only when the queue changes.
+ */
 public class DownloadQueue {
-    private static final List<GalleryDownloaderManager> downloadQueue = new CopyOnWriteArrayList<>();
+    private static final Object lock = new Object();
+    private static final Map<Integer, GalleryDownloaderManager> managers = new HashMap<>();
+    private static final Map<Integer, Priority> priorities = new HashMap<>();
+    private static final EnumMap<Priority, ArrayDeque<GalleryDownloaderManager>> levels = new EnumMap<>(Priority.class);
+    private static final CopyOnWriteArraySet<DownloadObserver> observers = new CopyOnWriteArraySet<>();
+    private static final CopyOnWriteArraySet<DownloadQueueListener> listeners = new CopyOnWriteArraySet<>();
+    private static volatile List<GalleryDownloaderManager> snapshot = Collections.emptyList();
+    private static volatile List<GalleryDownloaderV2> downloadersSnapshot = Collections.emptyList();
+
+    static {
+        for (Priority priority : Priority.values())
+            levels.put(priority, new ArrayDeque<>());
+    }
 
     public static void add(GalleryDownloaderManager x) {
-        for (GalleryDownloaderManager manager : downloadQueue)
-            if (x.downloader().getId() == manager.downloader().getId()) {
-                manager.downloader().setStatus(GalleryDownloaderV2.Status.NOT_STARTED);
-                givePriority(manager.downloader());
-                return;
+        add(x, Priority.NORMAL);
+    }
+
+    public static void add(GalleryDownloaderManager x, Priority priority) {
+        addAll(Collections.singletonList(x), priority);
+    }
+
+    /**
+     * Same as {@link #add(GalleryDownloaderManager, Priority)} for many managers, the snapshot is
+     * rebuilt once for all of them
+     */
+    public static void addAll(Collection<GalleryDownloaderManager> xs, Priority priority) {
+        List<GalleryDownloaderManager> added = new ArrayList<>(xs.size());
+        List<GalleryDownloaderManager> existing = new ArrayList<>(0);
+        synchronized (lock) {
+            for (GalleryDownloaderManager x : xs) {
+                int id = x.downloader().getId();
+                GalleryDownloaderManager old = managers.get(id);
+                if (old != null) {
+                    existing.add(old);
+                    continue;
+                }
+                managers.put(id, x);
+                priorities.put(id, priority);
+                levels.get(priority).addLast(x);
+                added.add(x);
             }
-        downloadQueue.add(x);
+            if (!added.isEmpty()) rebuildSnapshot();
+        }
+        for (GalleryDownloaderManager old : existing) {
+            old.downloader().setStatus(GalleryDownloaderV2.Status.NOT_STARTED);
+            givePriority(old.downloader());
+        }
+        for (GalleryDownloaderManager x : added) {
+            for (DownloadObserver observer : observers)
+                x.downloader().addObserver(observer);
+            for (DownloadQueueListener listener : listeners)
+                listener.onDownloaderAdded(x.downloader());
+        }
     }
 
     public static GalleryDownloaderV2 fetchForData() {
-        for (GalleryDownloaderManager x : downloadQueue)
+        for (GalleryDownloaderManager x : snapshot)
             if (!x.downloader().hasData()) return x.downloader();
         return null;
     }
 
     public static GalleryDownloaderManager fetch() {
-        for (GalleryDownloaderManager x : downloadQueue)
+        for (GalleryDownloaderManager x : snapshot)
             if (x.downloader().canBeFetched()) return x;
         return null;
     }
 
-    public static CopyOnWriteArrayList<GalleryDownloaderV2> getDownloaders() {
-        CopyOnWriteArrayList<GalleryDownloaderV2> downloaders = new CopyOnWriteArrayList<>();
-        for (GalleryDownloaderManager manager : downloadQueue)
-            downloaders.add(manager.downloader());
-        return downloaders;
+    /**
+     * Same as {@link #fetch()} but skips the managers which are already being processed
+     */
+    public static GalleryDownloaderManager fetch(Collection<GalleryDownloaderManager> exclude) {
+        for (GalleryDownloaderManager x : snapshot)
+            if (x.downloader().canBeFetched() && !exclude.contains(x)) return x;
+        return null;
+    }
+
+    /**
+     * Same as {@link #fetch(Collection)} but only returns galleries whose metadata is available
+     */
+    public static GalleryDownloaderManager fetchReady(Collection<GalleryDownloaderManager> exclude) {
+        for (GalleryDownloaderManager x : snapshot)
+            if (x.downloader().canBeFetched() && x.downloader().hasData() && !exclude.contains(x))
+                return x;
+        return null;
+    }
+
+    /**
+     * @return a read-only view of the queue in download order, it does not change after being returned
+     */
+    @NonNull
+    public static List<GalleryDownloaderV2> getDownloaders() {
+        return downloadersSnapshot;
     }
 
+    @Nullable
+    public static GalleryDownloaderManager findManager(int id) {
+        synchronized (lock) {
+            return managers.get(id);
+        }
+    }
+
+    /**
+     * The observer is attached to every download in the queue, including the ones added later
+     */
     public static void addObserver(DownloadObserver observer) {
-        for (GalleryDownloaderManager manager : downloadQueue)
+        if (observer == null) return;
+        observers.add(observer);
+        for (GalleryDownloaderManager manager : snapshot)
             manager.downloader().addObserver(observer);
     }
 
     public static void removeObserver(DownloadObserver observer) {
-        for (GalleryDownloaderManager manager : downloadQueue)
+        observers.remove(observer);
+        for (GalleryDownloaderManager manager : snapshot)
             manager.downloader().removeObserver(observer);
     }
 
+    public static void addListener(DownloadQueueListener listener) {
+        if (listener != null) listeners.add(listener);
+    }
+
+    public static void removeListener(DownloadQueueListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Nullable
     private static GalleryDownloaderManager findManagerFromDownloader(GalleryDownloaderV2 downloader) {
-        for (GalleryDownloaderManager manager : downloadQueue)
-            if (manager.downloader() == downloader)
-                return manager;
-        return null;
+        GalleryDownloaderManager manager = managers.get(downloader.getId());
+        return manager != null && manager.downloader() == downloader ? manager : null;
     }
 
     public static void remove(GalleryDownloaderV2 downloader, boolean cancel) {
-        GalleryDownloaderManager manager = findManagerFromDownloader(downloader);
-        if (manager == null) return;
+        synchronized (lock) {
+            if (findManagerFromDownloader(downloader) == null) return;
+        }
         if (cancel)
             downloader.setStatus(GalleryDownloaderV2.Status.CANCELED);
-        downloadQueue.remove(manager);
+        synchronized (lock) {
+            GalleryDownloaderManager manager = findManagerFromDownloader(downloader);
+            // may have been removed by an observer of the cancel event
+            if (manager == null) return;
+            managers.remove(downloader.getId());
+            Priority priority = priorities.remove(downloader.getId());
+            if (priority != null) levels.get(priority).remove(manager);
+            rebuildSnapshot();
+        }
+        for (DownloadQueueListener listener : listeners)
+            listener.onDownloaderRemoved(downloader);
     }
 
+    /**
+     * Moves the download in front of the queue
+     */
     public static void givePriority(GalleryDownloaderV2 downloader) {
-        GalleryDownloaderManager manager = findManagerFromDownloader(downloader);
-        if (manager == null) return;
-        downloadQueue.remove(manager);
-        downloadQueue.add(0, manager);
+        setPriority(downloader, Priority.HIGH);
     }
 
+    public static void setPriority(GalleryDownloaderV2 downloader, Priority priority) {
+        synchronized (lock) {
+            GalleryDownloaderManager manager = findManagerFromDownloader(downloader);
+            if (manager == null) return;
+            Priority old = priorities.put(downloader.getId(), priority);
+            if (old != null) levels.get(old).remove(manager);
+            levels.get(priority).addFirst(manager);
+            rebuildSnapshot();
+        }
+    }
+
+    private static void rebuildSnapshot() {
+        List<GalleryDownloaderManager> ordered = new ArrayList<>(managers.size());
+        for (ArrayDeque<GalleryDownloaderManager> level : levels.values())
+            ordered.addAll(level);
+        List<GalleryDownloaderV2> downloaders = new ArrayList<>(ordered.size());
+        for (GalleryDownloaderManager manager : ordered)
+            downloaders.add(manager.downloader());
+        snapshot = Collections.unmodifiableList(ordered);
+        downloadersSnapshot = Collections.unmodifiableList(downloaders);
+    }
+
+    public enum Priority {HIGH, NORMAL, LOW}
+
 }
@@ -0,0 +1,7 @@
+package com.maxwai.nclientv3.async.downloader;
+
+public interface DownloadQueueListener {
+    void onDownloaderAdded(GalleryDownloaderV2 downloader);
+
+    void onDownloaderRemoved(GalleryDownloaderV2 downloader);
+}
@@ -0,0 +1,226 @@
+package com.maxwai.nclientv3.async.downloader;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters of the download engine, kept in memory since the process started.
+ * <p>
+ * Throughput is measured over the last {@link #WINDOW_SECONDS} seconds, globally and per gallery.
+ * Latencies go in histograms with fixed buckets so recording never allocates. The report is
+ * shown by DownloadStatsActivity and can be saved to a file from there.
+ */
+public class DownloadStats {
+    private static final int WINDOW_SECONDS = 10;
+    private static final long[] BUCKETS_MS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+    private static final DownloadStats INSTANCE = new DownloadStats();
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private final Meter global = new Meter();
+    private final SparseArray<Meter> galleries = new SparseArray<>();
+    private final Histogram ttfb = new Histogram();
+    private final Histogram pageTime = new Histogram();
+    private final Histogram queueWait = new Histogram();
+    private final Histogram stopLatency = new Histogram();
+    // count per status code, -1 for network errors
+    private final Map<Integer, Integer> retries = new TreeMap<>();
+    private final Map<Integer, Integer> failures = new TreeMap<>();
+    private long pagesSaved;
+
+    private DownloadStats() {
+    }
+
+    @NonNull
+    public static DownloadStats getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void recordBytes(int galleryId, long bytes) {
+        long now = SystemClock.elapsedRealtime();
+        global.add(now, bytes);
+        Meter meter = galleries.get(galleryId);
+        if (meter == null) {
+            meter = new Meter();
+            galleries.put(galleryId, meter);
+        }
+        meter.add(now, bytes);
+    }
+
+    /**
+     * @param ttfbMs   time between the request and the response headers
+     * @param totalMs  time between the request and the page saved on disk
+     */
+    public synchronized void recordPage(long ttfbMs, long totalMs) {
+        pagesSaved++;
+        ttfb.add(ttfbMs);
+        pageTime.add(totalMs);
+    }
+
+    public synchronized void recordRetry(int code) {
+        increment(retries, code);
+    }
+
+    public synchronized void recordFailure(int code) {
+        increment(failures, code);
+    }
+
+    public synchronized void recordQueueWait(long ms) {
+        queueWait.add(ms);
+    }
+
+    public synchronized void recordStopLatency(long ms) {
+        stopLatency.add(ms);
+    }
+
+    /**
+     * The throughput of a gallery is dropped when it leaves the queue
+     */
+    public synchronized void removeGallery(int galleryId) {
+        galleries.remove(galleryId);
+    }
+
+    private static void increment(Map<Integer, Integer> counters, int code) {
+        Integer count = counters.get(code);
+        counters.put(code, count == null ? 1 : count + 1);
+    }
+
+    @NonNull
+    public String report() {
+        // read before taking the lock, the queue has its own
+        int queued = DownloadQueue.getDownloaders().size();
+        synchronized (this) {
+            return report(queued);
+        }
+    }
+
+    private String report(int queued) {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "Uptime: %d s\n", (now - startedAt) / 1000));
+        builder.append(String.format(Locale.US, "Queue: %d galleries\n", queued));
+        builder.append(String.format(Locale.US, "Pages saved: %d, %s total\n", pagesSaved, formatBytes(global.total)));
+        builder.append(String.format(Locale.US, "Throughput: %s/s\n", formatBytes(global.rate(now))));
+        for (int i = 0; i < galleries.size(); i++) {
+            long rate = galleries.valueAt(i).rate(now);
+            if (rate > 0)
+                builder.append(String.format(Locale.US, "  %d: %s/s\n", galleries.keyAt(i), formatBytes(rate)));
+        }
+        builder.append("\nTime to first byte\n");
+        ttfb.appendTo(builder);
+        builder.append("\nPage total time\n");
+        pageTime.appendTo(builder);
+        builder.append("\nQueue wait\n");
+        queueWait.appendTo(builder);
+        builder.append("\nStop latency\n");
+        stopLatency.appendTo(builder);
+        builder.append("\nRetries by status\n");
+        appendCounters(builder, retries);
+        builder.append("\nPages given up by status\n");
+        appendCounters(builder, failures);
+        return builder.toString();
+    }
+
+    public void writeTo(@NonNull Writer writer) throws IOException {
+        writer.write(report());
+    }
+
+    private static void appendCounters(StringBuilder builder, Map<Integer, Integer> counters) {
+        if (counters.isEmpty()) builder.append("  none\n");
+        for (Map.Entry<Integer, Integer> entry : counters.entrySet()) {
+            String code = entry.getKey() < 0 ? "network" : String.valueOf(entry.getKey());
+            builder.append(String.format(Locale.US, "  %s: %d\n", code, entry.getValue()));
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.US, "%.2f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Bytes per second over a sliding window of one second slots
+     */
+    private static final class Meter {
+        private final long[] slots = new long[WINDOW_SECONDS];
+        private long lastSecond = -1;
+        private long total;
+
+        void add(long now, long bytes) {
+            advance(now / 1000);
+            slots[(int) (lastSecond % WINDOW_SECONDS)] += bytes;
+            total += bytes;
+        }
+
+        long rate(long now) {
+            advance(now / 1000);
+            long sum = 0;
+            for (long slot : slots) sum += slot;
+            return sum / WINDOW_SECONDS;
+        }
+
+        private void advance(long second) {
+            if (lastSecond < 0) lastSecond = second;
+            // clears the slots of the seconds without traffic
+            for (long s = Math.max(lastSecond + 1, second - WINDOW_SECONDS + 1); s <= second; s++)
+                slots[(int) (s % WINDOW_SECONDS)] = 0;
+            lastSecond = Math.max(lastSecond, second);
+        }
+    }
+
+    private static final class Histogram {
+        private final long[] counts = new long[BUCKETS_MS.length + 1];
+        private long count, sum, max;
+
+        void add(long ms) {
+            if (ms < 0) return;
+            int i = 0;
+            while (i < BUCKETS_MS.length && ms > BUCKETS_MS[i]) i++;
+            counts[i]++;
+            count++;
+            sum += ms;
+            max = Math.max(max, ms);
+        }
+
+        /**
+         * @return upper bound of the bucket containing the percentile
+         */
+        long percentile(double p) {
+            long target = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS_MS.length; i++) {
+                seen += counts[i];
+                if (seen >= target) return BUCKETS_MS[i];
+            }
+            return max;
+        }
+
+        void appendTo(StringBuilder builder) {
+            if (count == 0) {
+                builder.append("  no samples\n");
+                return;
+            }
+            builder.append(String.format(Locale.US, "  n=%d avg=%d ms p50<=%d p90<=%d p99<=%d max=%d\n",
+                count, sum / count, percentile(0.5), percentile(0.9), percentile(0.99), max));
+            long lower = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    if (i < BUCKETS_MS.length) lower = BUCKETS_MS[i];
+                    continue;
+                }
+                String range = i < BUCKETS_MS.length
+                    ? String.format(Locale.US, "%d-%d ms", lower, BUCKETS_MS[i])
+                    : String.format(Locale.US, ">%d ms", lower);
+                builder.append(String.format(Locale.US, "    %-14s %d\n", range, counts[i]));
+                if (i < BUCKETS_MS.length) lower = BUCKETS_MS[i];
+            }
+        }
+    }
+}
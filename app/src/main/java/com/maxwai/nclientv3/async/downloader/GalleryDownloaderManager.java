@@ -5,7 +5,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 
+import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
+import androidx.core.content.FileProvider;
 
 import com.maxwai.nclientv3.GalleryActivity;
 import com.maxwai.nclientv3.R;
@@ -13,17 +15,20 @@ import com.maxwai.nclientv3.api.components.Gallery;
 import com.maxwai.nclientv3.settings.Global;
 import com.maxwai.nclientv3.settings.NotificationSettings;
 
+import java.io.File;
 import java.util.ConcurrentModificationException;
 import java.util.Locale;
 
 public class GalleryDownloaderManager {
+    // Android drops notification updates posted faster than this anyway
+    private static final int NOTIFICATION_UPDATES_PER_SECOND = 2;
     private final int notificationId = NotificationSettings.getNotificationId();
     private final GalleryDownloaderV2 downloaderV2;
     private final Context context;
     private NotificationCompat.Builder notification;
     private Gallery gallery;
 
-    private final DownloadObserver observer = new DownloadObserver() {
+    private final DownloadObserver observer = new CoalescingObserver(new DownloadObserver() {
         @Override
         public void triggerStartDownload(GalleryDownloaderV2 downloader) {
             gallery = downloader.getGallery();
@@ -55,7 +60,7 @@ public class GalleryDownloaderManager {
         public void triggerPauseDownload(GalleryDownloaderV2 downloader) {
             notificationUpdate();
         }
-    };
+    }, NOTIFICATION_UPDATES_PER_SECOND);
 
     public GalleryDownloaderManager(Context context, Gallery gallery, int start, int end) {
         this.context = context;
@@ -75,9 +80,16 @@ public class GalleryDownloaderManager {
     }
 
     private void addClickListener() {
-        Intent notifyIntent = new Intent(context, GalleryActivity.class);
-        notifyIntent.putExtra(context.getPackageName() + ".GALLERY", downloaderV2.localGallery());
-        notifyIntent.putExtra(context.getPackageName() + ".ISLOCAL", true);
+        Intent notifyIntent;
+        File archive = downloaderV2.getArchiveFile();
+        if (archive != null) {
+            notifyIntent = createOpenArchiveIntent(archive);
+            if (notifyIntent == null) return;
+        } else {
+            notifyIntent = new Intent(context, GalleryActivity.class);
+            notifyIntent.putExtra(context.getPackageName() + ".GALLERY", downloaderV2.localGallery());
+            notifyIntent.putExtra(context.getPackageName() + ".ISLOCAL", true);
+        }
         // Create the PendingIntent
 
         PendingIntent notifyPendingIntent;
@@ -93,6 +105,19 @@ public class GalleryDownloaderManager {
         notification.setContentIntent(notifyPendingIntent);
     }
 
+    @Nullable
+    private Intent createOpenArchiveIntent(File archive) {
+        try {
+            Uri uri = FileProvider.getUriForFile(context, context.getPackageName() + ".provider", archive);
+            Intent intent = new Intent(Intent.ACTION_VIEW);
+            intent.setDataAndType(uri, "application/vnd.comicbook+zip");
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            return intent;
+        } catch (IllegalArgumentException ignore) {//the folder is not shared by the provider
+            return null;
+        }
+    }
+
     public GalleryDownloaderV2 downloader() {
         return downloaderV2;
     }
@@ -1,9 +1,8 @@
 package com.maxwai.nclientv3.async.downloader;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -11,39 +10,104 @@ import androidx.annotation.Nullable;
 import com.maxwai.nclientv3.R;
 import com.maxwai.nclientv3.api.InspectorV3;
 import com.maxwai.nclientv3.api.components.Gallery;
+import com.maxwai.nclientv3.api.enums.ImageExt;
 import com.maxwai.nclientv3.api.local.LocalGallery;
 import com.maxwai.nclientv3.async.database.Queries;
+import com.maxwai.nclientv3.files.FolderIndex;
 import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.AppExecutors;
 import com.maxwai.nclientv3.utility.LogUtility;
 import com.maxwai.nclientv3.utility.Utility;
+import com.maxwai.nclientv3.utility.network.BandwidthLimiter;
+import com.maxwai.nclientv3.utility.network.HostCircuitBreaker;
+import com.maxwai.nclientv3.utility.network.MirrorPool;
+import com.maxwai.nclientv3.utility.network.NetworkUtil;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
+import okhttp3.Call;
+import okhttp3.HttpUrl;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Okio;
+import okio.Source;
 
 public class GalleryDownloaderV2 {
     public static final String DUPLICATE_EXTENSION = ".DUP";
+    private static final String PARTIAL_EXTENSION = ".part";
+    private static final String VALIDATOR_EXTENSION = ".part.tag";
+    private static final String ARCHIVE_EXTENSION = ".cbz";
     public static final Pattern ID_FILE = Pattern.compile("^\\.\\d{1,6}$");
+    private static final int MAX_PAGE_ATTEMPTS = 6;
+    private static final long BASE_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+    private static final long MAX_IDLE_SLEEP_MS = 500;
+    private static final long OFFLINE_RETRY_MS = 5000;
     private final Context context;
     private final int id;
     private final CopyOnWriteArraySet<DownloadObserver> observers = new CopyOnWriteArraySet<>();
     private final List<PageContainer> urls = new ArrayList<>();
-    private Status status = Status.NOT_STARTED;
+    private final Set<PageContainer> inFlight = new HashSet<>();
+    /**
+     * Requests currently running for this gallery, canceled as soon as it is paused or canceled
+     */
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+    private volatile Status status = Status.NOT_STARTED;
+    private volatile long stopRequestedAt = -1;
+    private volatile long lastStopLatency = -1;
+    private volatile long queuedAt = SystemClock.elapsedRealtime();
+    @Nullable
+    private volatile String error;
+    /**
+     * Extension which worked for a page whose own one was missing, tried first on the others
+     */
+    @Nullable
+    private volatile ImageExt fallbackExtension;
     private String title;
     private Uri thumbnail;
     private int start = -1, end = -1;
     private Gallery gallery;
     private File folder;
-    private boolean initialized = false;
+    /**
+     * Download folder chosen by {@link StorageAdmission}, null for the default one
+     */
+    @Nullable
+    private File downloadRoot;
+    /**
+     * Set once {@link #urls} holds the pages left, written under its lock
+     */
+    private volatile boolean initialized = false;
+    private PageCompletion completion = new PageCompletion();
+    /**
+     * Archive the pages are streamed into, null when downloading to a folder
+     */
+    @Nullable
+    private CbzArchive archive;
+    /**
+     * With a single page slot the pages go straight into the archive; with more they are saved
+     * to partial files, which can be resumed, and appended to the archive once complete
+     */
+    private volatile boolean streamToArchive;
+    private volatile boolean verifyRequested = false;
 
     public GalleryDownloaderV2(Context context, @Nullable String title, @Nullable Uri thumbnail, int id) {
         this.context = context;
@@ -59,7 +123,11 @@ public class GalleryDownloaderV2 {
         setGallery(gallery);
     }
 
-    private static File findFolder(File downloadfolder, String pathTitle, int id) {
+    private File findFolder(File downloadfolder, String pathTitle, int id) {
+        File indexed = FolderIndex.find(context, id);
+        // the gallery may have been moved to another volume when it was started
+        if (indexed != null && Global.getDownloadFolders(context).contains(indexed.getParentFile()))
+            return indexed;
         File folder = new File(downloadfolder, pathTitle);
         if (usableFolder(folder, id)) return folder;
         int i = 1;
@@ -69,6 +137,17 @@ public class GalleryDownloaderV2 {
         return folder;
     }
 
+    /**
+     * Like {@link #findFolder}, an archive of another gallery with the same title is never reused
+     */
+    private static File findArchive(String pathTitle, int id) {
+        File file = new File(Global.ZIPFOLDER, pathTitle + ARCHIVE_EXTENSION);
+        int i = 1;
+        while (file.exists() && CbzArchive.readId(file) != id)
+            file = new File(Global.ZIPFOLDER, pathTitle + DUPLICATE_EXTENSION + (i++) + ARCHIVE_EXTENSION);
+        return file;
+    }
+
     private static boolean usableFolder(File file, int id) {
         if (!file.exists()) return true;//folder not exists
         if (new File(file, "." + id).exists()) return true;//same id
@@ -90,6 +169,14 @@ public class GalleryDownloaderV2 {
         return folder;
     }
 
+    /**
+     * @return the cbz the pages are written to, null if the gallery is downloaded to a folder
+     */
+    @Nullable
+    public File getArchiveFile() {
+        return archive == null ? null : archive.getFile();
+    }
+
     public Gallery getGallery() {
         return gallery;
     }
@@ -103,16 +190,75 @@ public class GalleryDownloaderV2 {
         if (end == -1) end = gallery.getPageCount() - 1;
     }
 
+    /**
+     * @return the folder whose volume receives the pages: the archive folder for a cbz,
+     * otherwise the download folder the gallery is or will be saved into
+     */
+    @NonNull
+    File getDownloadRoot() {
+        if (archive != null || (!initialized && Global.isDownloadAsArchive())) return Global.ZIPFOLDER;
+        if (folder != null) return Objects.requireNonNull(folder.getParentFile());
+        File indexed = FolderIndex.find(context, id);
+        if (indexed != null) return Objects.requireNonNull(indexed.getParentFile());
+        return downloadRoot != null ? downloadRoot : Global.DOWNLOADFOLDER;
+    }
+
+    /**
+     * @return true if nothing has been saved yet, so the gallery can still go to another volume
+     */
+    boolean canMove() {
+        // archives always go in the ZIP folder of the main volume
+        return folder == null && !Global.isDownloadAsArchive() && FolderIndex.find(context, id) == null;
+    }
+
+    void setDownloadRoot(@NonNull File root) {
+        downloadRoot = root;
+    }
+
+    /**
+     * @return bytes expected to be written by the pages not saved yet
+     */
+    long estimateRemainingBytes() {
+        if (gallery == null) return 0;
+        List<Integer> pages = new ArrayList<>();
+        synchronized (urls) {
+            if (!initialized) {
+                for (int i = start; i <= end && i < gallery.getPageCount(); i++) pages.add(i);
+            } else {
+                for (PageContainer page : urls) pages.add(page.page - 1);
+            }
+        }
+        // estimated outside the lock, the admission lock is always taken first
+        StorageAdmission admission = StorageAdmission.getInstance();
+        long bytes = 0;
+        for (int page : pages)
+            bytes += admission.estimatePage(gallery.getGalleryData().getPage(page));
+        return bytes;
+    }
+
     private int getTotalPage() {
         return Math.max(1, end - start + 1);
     }
 
     public int getPercentage() {
-        if (gallery == null || urls.isEmpty()) return 0;
-        return ((getTotalPage() - urls.size()) * 100) / getTotalPage();
+        int remaining = remainingPages();
+        if (gallery == null || remaining == 0) return 0;
+        return ((getTotalPage() - remaining) * 100) / getTotalPage();
+    }
+
+    private int remainingPages() {
+        synchronized (urls) {
+            return urls.size();
+        }
     }
 
     private void onStart() {
+        DownloadStats.getInstance().recordQueueWait(SystemClock.elapsedRealtime() - queuedAt);
+        stopRequestedAt = -1;
+        error = null;
+        synchronized (urls) {
+            for (PageContainer page : urls) page.resetRetries();
+        }
         setStatus(Status.DOWNLOADING);
         for (DownloadObserver observer : observers) observer.triggerStartDownload(this);
     }
@@ -120,6 +266,7 @@ public class GalleryDownloaderV2 {
     private void onEnd() {
         setStatus(Status.FINISHED);
         for (DownloadObserver observer : observers) observer.triggerEndDownload(this);
+        DownloadStats.getInstance().removeGallery(id);
         LogUtility.d("Delete 75: " + id);
         Queries.DownloadTable.removeGallery(id);
     }
@@ -139,8 +286,12 @@ public class GalleryDownloaderV2 {
         for (DownloadObserver observer : observers) observer.triggerPauseDownload(this);
     }
 
+    private void onFail() {
+        for (DownloadObserver observer : observers) observer.triggerFailDownload(this);
+    }
+
     public LocalGallery localGallery() {
-        if (status != Status.FINISHED || folder == null) return null;
+        if (status != Status.FINISHED || folder == null || archive != null) return null;
         return new LocalGallery(folder);
     }
 
@@ -201,129 +352,571 @@ public class GalleryDownloaderV2 {
     }
 
     public boolean canBeFetched() {
-        return status != Status.FINISHED && status != Status.PAUSED;
+        return status != Status.FINISHED && status != Status.PAUSED && status != Status.FAILED;
     }
 
     public Status getStatus() {
         return status;
     }
 
+    /**
+     * @return why the download is {@link Status#FAILED}, null otherwise
+     */
+    @Nullable
+    public String getError() {
+        return status == Status.FAILED ? error : null;
+    }
+
+    private void fail(@NonNull String reason) {
+        error = reason;
+        LogUtility.w("Download " + id + " failed: " + reason);
+        setStatus(Status.FAILED);
+    }
+
     public void setStatus(Status status) {
         if (this.status == status) return;
+        Status previous = this.status;
         this.status = status;
+        if (previous == Status.DOWNLOADING && isStopped()) cancelCalls();
+        if (status == Status.NOT_STARTED) queuedAt = SystemClock.elapsedRealtime();
         if (status == Status.CANCELED) {
+            DownloadStats.getInstance().removeGallery(id);
             LogUtility.d("Delete 95: " + id);
             onCancel();
             Global.recursiveDelete(folder);
+            if (archive != null) archive.delete();
             Queries.DownloadTable.removeGallery(id);
         }
     }
 
     public void download() {
         initDownload();
+        if (verifyRequested) verifyPages();
         onStart();
-        while (!urls.isEmpty()) {
-            downloadPage(urls.get(0));
-            Utility.threadSleep(50);
-            if (status == Status.PAUSED) {
-                onPause();
-                return;
+        int threads = Math.min(Global.getDownloadPageThreads(), Math.max(1, remainingPages()));
+        streamToArchive = archive != null && threads == 1;
+        if (threads == 1) {
+            downloadPages();
+        } else {
+            ExecutorService pool = AppExecutors.newFixedPool("page-" + id, threads);
+            List<Callable<Void>> workers = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++)
+                workers.add(() -> {
+                    downloadPages();
+                    return null;
+                });
+            try {
+                pool.invokeAll(workers);
+            } catch (InterruptedException e) {
+                LogUtility.w("Page download interrupted: " + id, e);
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        if (isStopped()) recordStopLatency();
+        if (status == Status.DOWNLOADING && remainingPages() > 0 && BandwidthLimiter.getInstance().isBudgetExhausted()) {
+            LogUtility.d("Daily budget reached, pausing " + id);
+            setStatus(Status.PAUSED);
+        }
+        // the slots only return early when every page left has used all its attempts
+        if (status == Status.DOWNLOADING && remainingPages() > 0)
+            fail(context.getString(R.string.download_failed_pages, remainingPages()));
+        if (status != Status.CANCELED) finishArchive();
+        if (status == Status.FAILED) {
+            onFail();
+            return;
+        }
+        if (status == Status.PAUSED) {
+            onPause();
+            return;
+        }
+        if (status == Status.CANCELED) {
+            onCancel();
+            return;
+        }
+        if (remainingPages() == 0) {
+            // every page is in the archive, the folder only held the partial files
+            if (archive != null) {
+                Global.recursiveDelete(folder);
+                FolderIndex.put(id, archive.getFile());
             }
-            if (status == Status.CANCELED) {
-                onCancel();
+            onEnd();
+        }
+    }
+
+    private void finishArchive() {
+        if (archive == null) return;
+        try {
+            archive.finish();
+        } catch (IOException e) {
+            // the entries are intact, the directory is written again on the next pause or end
+            LogUtility.e("Unable to finish archive " + archive.getFile(), e);
+        }
+    }
+
+    private void cancelCalls() {
+        stopRequestedAt = SystemClock.elapsedRealtime();
+        for (Call call : calls) call.cancel();
+    }
+
+    private void recordStopLatency() {
+        long requestedAt = stopRequestedAt;
+        if (requestedAt < 0) return;
+        stopRequestedAt = -1;
+        lastStopLatency = SystemClock.elapsedRealtime() - requestedAt;
+        DownloadStats.getInstance().recordStopLatency(lastStopLatency);
+        LogUtility.d("Download " + id + " stopped in " + lastStopLatency + " ms");
+    }
+
+    /**
+     * @return milliseconds between the last pause or cancel and the moment every page worker
+     * of this gallery returned, -1 if it has never been stopped while downloading
+     */
+    public long getLastStopLatency() {
+        return lastStopLatency;
+    }
+
+    private boolean isStopped() {
+        return status == Status.PAUSED || status == Status.CANCELED || status == Status.FAILED;
+    }
+
+    /**
+     * Worker loop, one instance runs for every page slot of this gallery
+     */
+    private void downloadPages() {
+        PageContainer page;
+        BandwidthLimiter limiter = BandwidthLimiter.getInstance();
+        while (!isStopped() && !Thread.currentThread().isInterrupted() && !limiter.isBudgetExhausted() && (page = nextPage()) != null) {
+            if (downloadPage(page)) continue;
+            StorageAdmission admission = StorageAdmission.getInstance();
+            // the partial files of an archive download still go to the folder
+            if (admission.isFull(folder) || (archive != null && admission.isFull(archive.getFile()))) {
+                // every other page would fail the same way
+                LogUtility.w("Storage full, pausing " + id);
+                setStatus(Status.PAUSED);
                 return;
             }
         }
-        onEnd();
     }
 
-    private void downloadPage(PageContainer page) {
-        if (savePage(page)) {
-            urls.remove(page);
-            onUpdate();
+    /**
+     * Waits for a failed page when all the others are done or taken by another slot
+     *
+     * @return the first page which is neither downloaded, nor being downloaded by another slot,
+     * nor waiting for its next attempt; null if there are none left for this slot
+     */
+    @Nullable
+    private PageContainer nextPage() {
+        while (!isStopped()) {
+            long wait = Long.MAX_VALUE;
+            synchronized (urls) {
+                long now = SystemClock.elapsedRealtime();
+                for (PageContainer page : urls) {
+                    if (page.gaveUp || inFlight.contains(page)) continue;
+                    if (page.retryAt <= now) {
+                        inFlight.add(page);
+                        return page;
+                    }
+                    wait = Math.min(wait, page.retryAt - now);
+                }
+            }
+            if (wait == Long.MAX_VALUE) return null;
+            try {
+                // short naps so a pause is noticed quickly
+                Thread.sleep(Math.min(wait, MAX_IDLE_SLEEP_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
         }
+        return null;
     }
 
-    private boolean isCorrupted(File file) {
-        String path = file.getAbsolutePath();
-        if (path.endsWith(".jpg") || path.endsWith(".jpeg")) {
-            return Global.isJPEGCorrupted(path);
+    private boolean downloadPage(PageContainer page) {
+        boolean saved = savePage(page);
+        synchronized (urls) {
+            inFlight.remove(page);
+            // progress is published under the lock so observers always see an increasing count
+            if (saved && urls.remove(page)) onUpdate();
+            else if (!saved && !isStopped()) scheduleRetry(page);
+        }
+        if (saved && page.triedExtensions.size() > 1)
+            fallbackExtension = gallery.getPageExtension(page.page - 1);
+        return saved;
+    }
+
+    /**
+     * A missing page is tried again at once with another extension, other failures wait
+     * longer at every attempt; must be called holding the {@link #urls} lock
+     */
+    private void scheduleRetry(PageContainer page) {
+        if (page.heldUntil > 0) {
+            // not the fault of the page, it doesn't count as an attempt
+            page.retryAt = page.heldUntil;
+            page.heldUntil = 0;
+            return;
+        }
+        if (page.lastCode == 404 && switchExtension(page)) {
+            page.retryAt = 0;
+            return;
         }
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = 256;
-        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
-        boolean x = bitmap == null;
-        if (!x) bitmap.recycle();
-        return x;
+        if (page.lastCode == 404 || ++page.attempts >= MAX_PAGE_ATTEMPTS) {
+            LogUtility.w("Giving up page " + page.page + " of " + id + ", last status " + page.lastCode);
+            DownloadStats.getInstance().recordFailure(page.lastCode);
+            page.gaveUp = true;
+            return;
+        }
+        DownloadStats.getInstance().recordRetry(page.lastCode);
+        page.retryAt = SystemClock.elapsedRealtime() + backoffDelay(page.attempts);
+    }
+
+    private static long backoffDelay(int attempts) {
+        long delay = Math.min(MAX_RETRY_DELAY_MS, BASE_RETRY_DELAY_MS << Math.min(attempts - 1, 16));
+        // half fixed, half random so the slots failing together don't retry together
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Points the page to the next extension not tried yet, like the reader does when an image fails
+     *
+     * @return false if every extension has been tried
+     */
+    private boolean switchExtension(PageContainer page) {
+        int index = page.page - 1;
+        if (page.triedExtensions.isEmpty()) page.triedExtensions.add(gallery.getPageExtension(index));
+        ImageExt next = fallbackExtension;
+        if (next == null || page.triedExtensions.contains(next))
+            next = ImageExt.firstNotIn(page.triedExtensions);
+        if (next == null) return false;
+        LogUtility.d("Trying page " + page.page + " of " + id + " with extension " + next.getName());
+        discardPartial(new File(folder, page.getPageName() + PARTIAL_EXTENSION), new File(folder, page.getPageName() + VALIDATOR_EXTENSION));
+        page.triedExtensions.add(next);
+        gallery.setPageExtension(index, next);
+        page.url = gallery.getHighPage(index).toString();
+        page.ext = gallery.getPageExtensionString(index);
+        return true;
+    }
+
+    private boolean isCorrupted(File file) {
+        return Global.isImageCorrupted(file.getAbsolutePath());
     }
 
     private boolean savePage(PageContainer page) {
         if (page == null) return true;
+        if (archive != null && archive.contains(page.getPageName())) return true;
         File filePath = new File(folder, page.getPageName());
         LogUtility.d("Saving into: " + filePath + "," + page.url);
-        if (filePath.exists() && !isCorrupted(filePath)) return true;
-        try (Response r = Global.getClient(context).newCall(new Request.Builder().url(page.url).build()).execute()) {
-            if (r.code() != 200) {
+        if (filePath.exists() && (completion.matches(page.page - 1, filePath.length()) || !isCorrupted(filePath)))
+            return archivePage(page, filePath);
+        File partial = new File(folder, page.getPageName() + PARTIAL_EXTENSION);
+        File validatorFile = new File(folder, page.getPageName() + VALIDATOR_EXTENSION);
+        long resumeFrom = partial.exists() ? partial.length() : 0;
+        HostCircuitBreaker breaker = HostCircuitBreaker.getInstance();
+        MirrorPool mirrors = MirrorPool.getInstance();
+        HttpUrl url = mirrors.rewrite(HttpUrl.get(page.url));
+        Request.Builder request = new Request.Builder();
+        if (!breaker.allow(url.host())) {
+            HttpUrl other = mirrors.failover(url);
+            if (other == null || !breaker.allow(other.host())) {
+                // every server is resting, the page waits for them instead of failing the gallery
+                long retryAt = breaker.retryAt(url.host());
+                if (other != null) retryAt = Math.min(retryAt, breaker.retryAt(other.host()));
+                page.heldUntil = retryAt;
+                LogUtility.d("Page " + page.page + " of " + id + " held, " + url.host() + " not responding");
+                return false;
+            }
+            url = other;
+            MirrorPool.pin(request);
+        }
+        String host = url.host();
+        request.url(url);
+        if (resumeFrom > 0) {
+            request.header("Range", "bytes=" + resumeFrom + "-");
+            String validator = readValidator(validatorFile);
+            // without a validator the final corruption check is the only guard
+            if (validator != null) request.header("If-Range", validator);
+        }
+        Call call = Global.getClient(context).newCall(request.build());
+        calls.add(call);
+        // the status may have changed before the call was registered
+        if (isStopped()) call.cancel();
+        long startedAt = SystemClock.elapsedRealtime();
+        try (Response r = call.execute()) {
+            page.lastCode = r.code();
+            if (r.code() >= 500 || r.code() == 429) breaker.recordFailure(r.request().url().host());
+            else breaker.recordSuccess(r.request().url().host());
+            ResponseBody body = r.body();
+            if (body == null) return false;
+            boolean append;
+            String contentRange = r.header("Content-Range");
+            if (r.code() == 206 && resumeFrom > 0 && rangeStartsAt(contentRange, resumeFrom)) {
+                append = true;
+            } else if (r.code() == 200 || (r.code() == 206 && rangeStartsAt(contentRange, 0))) {
+                // range ignored or the file changed on the server: start from scratch
+                append = false;
+                writeValidator(validatorFile, r);
+            } else if (r.code() == 206 && resumeFrom > 0) {
+                // a range which doesn't follow the partial file, ask for the whole page instead
+                LogUtility.w("Unexpected range " + contentRange + " for page " + page.page + " of " + id);
+                discardPartial(partial, validatorFile);
+                r.close();
+                return savePage(page);
+            } else {
+                if (r.code() == 416) discardPartial(partial, validatorFile);
                 return false;
             }
-            if (r.body() == null) return false;
 
-            long expectedLength = r.body().contentLength(); // -1 when unknown (chunked/gzip/etc)
-            File partial = new File(folder, page.getPageName() + ".part");
-            long written = Utility.writeStreamToFile(r.body().byteStream(), partial);
-            if (expectedLength >= 0 && written != expectedLength) {
+            long expectedLength = body.contentLength(); // -1 when unknown (chunked/gzip/etc)
+            Source source = BandwidthLimiter.getInstance().throttle(body.source());
+            DownloadStats stats = DownloadStats.getInstance();
+            if (streamToArchive && !append) {
+                // straight into the archive, the page is never written to the folder
+                long size = archive.write(page.getPageName(), Okio.buffer(source), expectedLength);
+                if (size < 0) return false;
+                stats.recordBytes(id, size);
                 //noinspection ResultOfMethodCallIgnored
-                partial.delete();
+                validatorFile.delete();
+                StorageAdmission.getInstance().learn(gallery.getGalleryData().getPage(page.page - 1), size);
+                stats.recordPage(r.receivedResponseAtMillis() - r.sentRequestAtMillis(), SystemClock.elapsedRealtime() - startedAt);
+                return true;
+            }
+            // a resumed file only passes through the new bytes, its checksum is computed at the end
+            CRC32 crc = append ? null : new CRC32();
+            // synced so the page is never recorded as complete before its bytes are on disk
+            long written = Utility.writeSourceToFile(Okio.buffer(source), partial, append, crc, true);
+            stats.recordBytes(id, written);
+            if (expectedLength >= 0 && written != expectedLength) {
+                // truncated transfer, keep what we have for the next attempt
                 return false;
             }
             if (isCorrupted(partial)) {
-                //noinspection ResultOfMethodCallIgnored
-                partial.delete();
+                discardPartial(partial, validatorFile);
                 return false;
             }
             //noinspection ResultOfMethodCallIgnored
             filePath.delete();
             if (!partial.renameTo(filePath)) {
-                //noinspection ResultOfMethodCallIgnored
-                partial.delete();
+                discardPartial(partial, validatorFile);
                 return false;
             }
-            return true;
+            //noinspection ResultOfMethodCallIgnored
+            validatorFile.delete();
+            recordPage(page, filePath, crc);
+            stats.recordPage(r.receivedResponseAtMillis() - r.sentRequestAtMillis(), SystemClock.elapsedRealtime() - startedAt);
+            return archivePage(page, filePath);
         } catch (IOException | NumberFormatException e) {
-            LogUtility.e(e, e);
+            // the partial file is kept, the next run resumes from there
+            page.lastCode = -1;
+            if (call.isCanceled()) {
+                LogUtility.d("Page " + page.page + " of " + id + " stopped");
+            } else if (!NetworkUtil.isConnected(context)) {
+                // the worker is stopped by its network constraint, the host is not to blame
+                page.heldUntil = SystemClock.elapsedRealtime() + OFFLINE_RETRY_MS;
+                LogUtility.d("Page " + page.page + " of " + id + " interrupted, no network");
+            } else if (e instanceof UnknownHostException) {
+                LogUtility.w("Unable to resolve " + host + " for page " + page.page + " of " + id);
+            } else {
+                breaker.recordFailure(host);
+                LogUtility.e(e, e);
+            }
+        } finally {
+            calls.remove(call);
         }
         return false;
     }
 
+    /**
+     * @param contentRange value of the header, in the form {@code bytes start-end/total}
+     */
+    private static boolean rangeStartsAt(@Nullable String contentRange, long start) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return false;
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) return false;
+        return Long.parseLong(contentRange.substring(6, dash).trim()) == start;
+    }
+
+    private static void discardPartial(File partial, File validatorFile) {
+        //noinspection ResultOfMethodCallIgnored
+        partial.delete();
+        //noinspection ResultOfMethodCallIgnored
+        validatorFile.delete();
+    }
+
+    /**
+     * Stores the value to send as If-Range when resuming: a strong ETag or, if missing, Last-Modified
+     */
+    private static void writeValidator(File validatorFile, Response response) throws IOException {
+        String validator = response.header("ETag");
+        if (validator == null || validator.startsWith("W/"))
+            validator = response.header("Last-Modified");
+        if (validator == null) {
+            //noinspection ResultOfMethodCallIgnored
+            validatorFile.delete();
+            return;
+        }
+        try (FileWriter writer = new FileWriter(validatorFile)) {
+            writer.write(validator);
+        }
+    }
 
-    public void initDownload() {
+    @Nullable
+    private static String readValidator(File validatorFile) {
+        if (!validatorFile.exists()) return null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(validatorFile))) {
+            String line = reader.readLine();
+            return line == null || line.isEmpty() ? null : line;
+        } catch (IOException e) {
+            LogUtility.w("Unable to read validator " + validatorFile, e);
+            return null;
+        }
+    }
+
+
+    public synchronized void initDownload() {
         if (initialized) return;
-        initialized = true;
         createFolder();
-        createPages();
-        checkPages();
+        openArchive();
+        completion = PageCompletion.fromBytes(Queries.DownloadTable.getPages(id));
+        // checked outside the lock, estimateRemainingBytes() sees either the whole range or the pages left
+        List<PageContainer> pages = createPages();
+        checkPages(pages);
+        synchronized (urls) {
+            urls.addAll(pages);
+            initialized = true;
+        }
+    }
+
+    private void openArchive() {
+        File file = findArchive(title, id);
+        // a download started as archive stays one even if the setting is changed
+        if (!Global.isDownloadAsArchive() && !file.exists()) return;
+        //noinspection ResultOfMethodCallIgnored
+        Global.ZIPFOLDER.mkdirs();
+        try {
+            archive = new CbzArchive(file, id);
+        } catch (IOException e) {
+            LogUtility.e("Unable to open archive " + file + ", saving to folder", e);
+        }
+    }
+
+    /**
+     * Moves a page saved in the folder, by an older run or a resumed partial file, into the
+     * archive; does nothing when downloading to a folder
+     *
+     * @return false if the page could not be archived and is still only in the folder
+     */
+    private boolean archivePage(PageContainer page, File filePath) {
+        if (archive == null) return true;
+        int index = page.page - 1;
+        try {
+            int crc = completion.matches(index, filePath.length()) ? completion.getCrc(index) : Utility.crc32(filePath);
+            archive.append(page.getPageName(), filePath, crc);
+        } catch (IOException e) {
+            LogUtility.e("Unable to archive " + filePath, e);
+            return false;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        filePath.delete();
+        return true;
+    }
+
+    private void recordPage(PageContainer page, File filePath, @Nullable CRC32 crc) {
+        try {
+            int value = crc != null ? (int) crc.getValue() : Utility.crc32(filePath);
+            completion.markDone(page.page - 1, filePath.length(), value);
+            Queries.DownloadTable.updatePages(id, completion.toBytes());
+            StorageAdmission.getInstance().learn(gallery.getGalleryData().getPage(page.page - 1), filePath.length());
+        } catch (IOException e) {
+            // the page is saved anyway, it will be checked again on the next resume
+            LogUtility.w("Unable to record page " + filePath, e);
+        }
     }
 
-    private void checkPages() {
+    /**
+     * Pages recorded as saved are accepted if the file still has the same size,
+     * the others (older downloads or changed files) are decoded once and then recorded
+     */
+    private void checkPages(List<PageContainer> pages) {
         File filePath;
-        for (int i = 0; i < urls.size(); i++) {
-            if(urls.get(i)==null){
-                urls.remove(i--);
+        boolean changed = false;
+        for (int i = 0; i < pages.size(); i++) {
+            PageContainer page = pages.get(i);
+            if (page == null) {
+                pages.remove(i--);
+                continue;
+            }
+            if (archive != null && archive.contains(page.getPageName())) {
+                pages.remove(i--);
                 continue;
             }
-            filePath = new File(folder, urls.get(i).getPageName());
-            if (filePath.exists() && !isCorrupted(filePath))
-                urls.remove(i--);
+            filePath = new File(folder, page.getPageName());
+            if (!filePath.exists()) continue;
+            long length = filePath.length();
+            if (completion.matches(page.page - 1, length)) {
+                if (archivePage(page, filePath)) pages.remove(i--);
+            } else if (!isCorrupted(filePath)) {
+                try {
+                    completion.markDone(page.page - 1, length, Utility.crc32(filePath));
+                    changed = true;
+                } catch (IOException e) {
+                    LogUtility.w("Unable to checksum " + filePath, e);
+                }
+                if (archivePage(page, filePath)) pages.remove(i--);
+            }
+        }
+        if (changed) Queries.DownloadTable.updatePages(id, completion.toBytes());
+    }
+
+    /**
+     * Makes the next start checksum the pages already saved instead of trusting their size
+     */
+    public void requestVerification() {
+        verifyRequested = true;
+    }
+
+    /**
+     * Compares every page recorded as saved in the folder with its CRC32, the ones which
+     * changed are downloaded again. Pages already in an archive are left to the CRC check
+     * of the zip readers.
+     */
+    private void verifyPages() {
+        verifyRequested = false;
+        if (folder == null) return;
+        List<PageContainer> broken = new ArrayList<>();
+        for (int i = start; i <= end && i < gallery.getPageCount(); i++) {
+            if (!completion.isDone(i)) continue;
+            PageContainer page = new PageContainer(i + 1, gallery.getHighPage(i).toString(), gallery.getPageExtensionString(i));
+            File filePath = new File(folder, page.getPageName());
+            if (!filePath.exists()) continue;
+            try {
+                if (Utility.crc32(filePath) == completion.getCrc(i)) continue;
+            } catch (IOException e) {
+                LogUtility.w("Unable to checksum " + filePath, e);
+            }
+            LogUtility.w("Page " + page.page + " of " + id + " changed on disk, downloading it again");
+            completion.clear(i);
+            //noinspection ResultOfMethodCallIgnored
+            filePath.delete();
+            broken.add(page);
+        }
+        if (broken.isEmpty()) return;
+        Queries.DownloadTable.updatePages(id, completion.toBytes());
+        synchronized (urls) {
+            for (PageContainer page : urls) broken.removeIf(p -> p.page == page.page);
+            urls.addAll(broken);
         }
     }
 
-    private void createPages() {
+    private List<PageContainer> createPages() {
+        List<PageContainer> pages = new ArrayList<>(getTotalPage());
         for (int i = start; i <= end && i < gallery.getPageCount(); i++)
-            urls.add(new PageContainer(i + 1, gallery.getHighPage(i).toString(), gallery.getPageExtensionString(i)));
+            pages.add(new PageContainer(i + 1, gallery.getHighPage(i).toString(), gallery.getPageExtensionString(i)));
+        return pages;
     }
 
     private void createFolder() {
-        folder = findFolder(Global.DOWNLOADFOLDER, title, id);
+        folder = findFolder(downloadRoot != null ? downloadRoot : Global.DOWNLOADFOLDER, title, id);
         if (!folder.mkdirs()) {
             return;
         }
@@ -339,6 +932,7 @@ public class GalleryDownloaderV2 {
         File idFile = new File(folder, "." + id);
         //noinspection ResultOfMethodCallIgnored
         idFile.createNewFile();
+        FolderIndex.put(id, folder);
     }
 
     private void writeNoMedia() throws IOException {
@@ -371,11 +965,18 @@ public class GalleryDownloaderV2 {
         return result;
     }
 
-    public enum Status {NOT_STARTED, DOWNLOADING, PAUSED, FINISHED, CANCELED}
+    public enum Status {NOT_STARTED, DOWNLOADING, PAUSED, FINISHED, CANCELED, FAILED}
 
     public static class PageContainer {
         public final int page;
-        public final String url, ext;
+        public String url, ext;
+        // retry state, only touched by the slot downloading the page or under the urls lock
+        final List<ImageExt> triedExtensions = new ArrayList<>(ImageExt.values().length);
+        int attempts, lastCode;
+        long retryAt;
+        // set when the page waits for the network or a host without it being its fault
+        long heldUntil;
+        boolean gaveUp;
 
         public PageContainer(int page, String url, String ext) {
             this.page = page;
@@ -383,6 +984,13 @@ public class GalleryDownloaderV2 {
             this.ext = ext;
         }
 
+        void resetRetries() {
+            attempts = 0;
+            retryAt = 0;
+            heldUntil = 0;
+            gaveUp = false;
+        }
+
         public String getPageName() {
             return String.format(Locale.US, "%03d.%s", page, ext);
         }
@@ -0,0 +1,92 @@
+package com.maxwai.nclientv3.async.downloader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Completion state of the pages of a download: a bitmap of the saved pages plus the
+ * size and CRC32 of each of them.
+ * <p>
+ * It is stored in the Downloads table so that resuming only has to compare file sizes
+ * instead of decoding every page already on disk; the checksums are compared only when
+ * the user asks for it.
+ */
+public class PageCompletion {
+    private static final int FORMAT_VERSION = 1;
+    private final BitSet done = new BitSet();
+    private long[] sizes = new long[0];
+    private int[] crcs = new int[0];
+
+    @NonNull
+    public static PageCompletion fromBytes(@Nullable byte[] bytes) {
+        PageCompletion completion = new PageCompletion();
+        if (bytes == null || bytes.length == 0) return completion;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != FORMAT_VERSION) return completion;
+            byte[] bitmap = new byte[buffer.getInt()];
+            buffer.get(bitmap);
+            BitSet done = BitSet.valueOf(bitmap);
+            for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1))
+                completion.markDone(i, buffer.getLong(), buffer.getInt());
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            LogUtility.w("Invalid page completion data", e);
+            return new PageCompletion();
+        }
+        return completion;
+    }
+
+    @NonNull
+    public synchronized byte[] toBytes() {
+        byte[] bitmap = done.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + bitmap.length + done.cardinality() * 12);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(bitmap.length);
+        buffer.put(bitmap);
+        for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+            buffer.putLong(sizes[i]);
+            buffer.putInt(crcs[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param index zero based page index
+     */
+    public synchronized void markDone(int index, long size, int crc) {
+        if (index >= sizes.length) {
+            int length = Math.max(index + 1, sizes.length * 2);
+            sizes = Arrays.copyOf(sizes, length);
+            crcs = Arrays.copyOf(crcs, length);
+        }
+        done.set(index);
+        sizes[index] = size;
+        crcs[index] = crc;
+    }
+
+    public synchronized void clear(int index) {
+        done.clear(index);
+    }
+
+    public synchronized boolean isDone(int index) {
+        return done.get(index);
+    }
+
+    /**
+     * @return true if the page is marked as saved and the file on disk still has the recorded size
+     */
+    public synchronized boolean matches(int index, long fileSize) {
+        return done.get(index) && sizes[index] == fileSize;
+    }
+
+    public synchronized int getCrc(int index) {
+        return done.get(index) ? crcs[index] : 0;
+    }
+}
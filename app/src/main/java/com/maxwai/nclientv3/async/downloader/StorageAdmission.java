@@ -0,0 +1,159 @@
+package com.maxwai.nclientv3.async.downloader;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.maxwai.nclientv3.api.components.Page;
+import com.maxwai.nclientv3.api.enums.ImageExt;
+import com.maxwai.nclientv3.components.classes.Size;
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks there is room for a gallery before its pages are downloaded.
+ * <p>
+ * The size of a gallery is estimated from the dimensions of its pages, using the bytes per
+ * pixel seen on the pages saved so far. Admitted galleries keep their remaining size reserved
+ * on the volume they are saved to, so galleries downloaded together don't count the same free
+ * space twice. A gallery which doesn't fit is moved to another volume if none of its pages has
+ * been saved yet, otherwise it is held until space is freed.
+ */
+public class StorageAdmission {
+    // left free for the system and the rest of the app
+    private static final long MIN_FREE_BYTES = 200L * 1024 * 1024;
+    // below this a running download is paused instead of failing page after page
+    private static final long STOP_FREE_BYTES = 50L * 1024 * 1024;
+    private static final double SAFETY_FACTOR = 1.2;
+    private static final long UNKNOWN_PAGE_BYTES = 512 * 1024;
+    private static final double ALPHA = 0.1;
+    private static final StorageAdmission INSTANCE = new StorageAdmission();
+    private final Map<GalleryDownloaderV2, File> reservations = new HashMap<>();
+    private final EnumMap<ImageExt, Double> bytesPerPixel = new EnumMap<>(ImageExt.class);
+
+    private StorageAdmission() {
+    }
+
+    @NonNull
+    public static StorageAdmission getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reserves the space needed by the remaining pages of downloader, moving it to another
+     * download folder when possible
+     *
+     * @return false if no volume has room for it
+     */
+    public synchronized boolean admit(@NonNull Context context, @NonNull GalleryDownloaderV2 downloader) {
+        long needed = (long) (downloader.estimateRemainingBytes() * SAFETY_FACTOR);
+        File root = downloader.getDownloadRoot();
+        if (fits(root, needed, downloader)) {
+            reservations.put(downloader, root);
+            return true;
+        }
+        if (downloader.canMove()) {
+            for (File other : Global.getDownloadFolders(context)) {
+                if (other.equals(root) || !fits(other, needed, downloader)) continue;
+                LogUtility.d("Moving " + downloader.getId() + " to " + other + ", " + needed + " bytes needed");
+                downloader.setDownloadRoot(other);
+                reservations.put(downloader, other);
+                return true;
+            }
+        }
+        LogUtility.w("No room for " + downloader.getId() + ", " + needed + " bytes needed");
+        return false;
+    }
+
+    public synchronized void release(@NonNull GalleryDownloaderV2 downloader) {
+        reservations.remove(downloader);
+    }
+
+    /**
+     * @return true if the volume of folder is so full that the download must stop
+     */
+    public boolean isFull(@Nullable File folder) {
+        File existing = existingAncestor(folder);
+        return existing != null && existing.getUsableSpace() < STOP_FREE_BYTES;
+    }
+
+    /**
+     * @return expected size in bytes of the page once saved
+     */
+    public synchronized long estimatePage(@Nullable Page page) {
+        if (page == null) return UNKNOWN_PAGE_BYTES;
+        Size size = page.getSize();
+        long pixels = size == null ? 0 : (long) size.getWidth() * size.getHeight();
+        if (pixels <= 0) return UNKNOWN_PAGE_BYTES;
+        return (long) (pixels * getBytesPerPixel(page.getImageExt()));
+    }
+
+    /**
+     * Updates the bytes per pixel of the format with a saved page
+     */
+    public synchronized void learn(@Nullable Page page, long bytes) {
+        if (page == null || page.getSize() == null || bytes <= 0) return;
+        long pixels = (long) page.getSize().getWidth() * page.getSize().getHeight();
+        if (pixels <= 0) return;
+        ImageExt ext = page.getImageExt();
+        double sample = (double) bytes / pixels;
+        bytesPerPixel.put(ext, getBytesPerPixel(ext) * (1 - ALPHA) + sample * ALPHA);
+    }
+
+    private double getBytesPerPixel(@Nullable ImageExt ext) {
+        Double learned = bytesPerPixel.get(ext);
+        if (learned != null) return learned;
+        if (ext == null) return 0.5;
+        switch (ext) {
+            case PNG:
+                return 1.5;
+            case GIF:
+                return 1.0;
+            case WEBP:
+            case GIF_WEBP:
+            case JPG_WEBP:
+            case PNG_WEBP:
+            case WEBP_WEBP:
+                return 0.3;
+            default:
+                return 0.5;
+        }
+    }
+
+    private boolean fits(File root, long needed, GalleryDownloaderV2 self) {
+        File existing = existingAncestor(root);
+        if (existing == null) return false;
+        long free = existing.getUsableSpace() - MIN_FREE_BYTES;
+        for (Map.Entry<GalleryDownloaderV2, File> reservation : reservations.entrySet()) {
+            if (reservation.getKey() == self || !sameVolume(existing, reservation.getValue()))
+                continue;
+            // what is already written is no longer part of the free space
+            free -= (long) (reservation.getKey().estimateRemainingBytes() * SAFETY_FACTOR);
+        }
+        return free >= needed;
+    }
+
+    /**
+     * Storage volumes are not exposed as files, two folders with the same total space are
+     * assumed to be on the same one
+     */
+    private static boolean sameVolume(File a, File b) {
+        File existing = existingAncestor(b);
+        return existing != null && a.getTotalSpace() == existing.getTotalSpace();
+    }
+
+    /**
+     * The download folder may not be created yet, its space is the one of the first parent which exists
+     */
+    @Nullable
+    private static File existingAncestor(@Nullable File file) {
+        while (file != null && !file.exists()) file = file.getParentFile();
+        return file;
+    }
+}
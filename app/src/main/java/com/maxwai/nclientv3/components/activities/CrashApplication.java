@@ -26,6 +26,7 @@ import com.maxwai.nclientv3.settings.Global;
 import com.maxwai.nclientv3.settings.TagV2;
 import com.maxwai.nclientv3.utility.AppExecutors;
 import com.maxwai.nclientv3.utility.LogUtility;
+import com.maxwai.nclientv3.utility.network.BandwidthLimiter;
 import com.maxwai.nclientv3.utility.network.NetworkUtil;
 import com.maxwai.nclientv3.BuildConfig;
 
@@ -59,6 +60,7 @@ public class CrashApplication extends Application {
             afterUpdateChecks(preferences, version);
 
         Global.initFromShared(this);
+        BandwidthLimiter.getInstance().initialize(this);
         NetworkUtil.initConnectivity(this);
         TagV2.initMinCount(this);
         TagV2.initSortByName(this);
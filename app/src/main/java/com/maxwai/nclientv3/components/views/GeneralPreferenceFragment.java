@@ -31,6 +31,7 @@ import androidx.preference.SeekBarPreference;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.maxwai.nclientv3.CopyToClipboardActivity;
+import com.maxwai.nclientv3.DownloadStatsActivity;
 import com.maxwai.nclientv3.R;
 import com.maxwai.nclientv3.SettingsActivity;
 import com.maxwai.nclientv3.StatusManagerActivity;
@@ -368,6 +369,14 @@ public class GeneralPreferenceFragment extends PreferenceFragmentCompat {
                 return true;
             });
         }
+        {
+            Preference downloadStats = Objects.requireNonNull(findPreference(getString(R.string.preference_key_download_stats)));
+            downloadStats.setOnPreferenceClickListener(preference -> {
+                Intent i = new Intent(act, DownloadStatsActivity.class);
+                act.runOnUiThread(() -> act.startActivity(i));
+                return false;
+            });
+        }
         {
             Preference copySettings = Objects.requireNonNull(findPreference(getString(R.string.preference_key_copy_settings)));
             copySettings.setOnPreferenceClickListener(preference -> {
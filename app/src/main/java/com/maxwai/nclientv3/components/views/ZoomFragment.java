@@ -21,6 +21,7 @@ import com.bumptech.glide.Priority;
 import com.bumptech.glide.RequestBuilder;
 import com.bumptech.glide.RequestManager;
 import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.HttpException;
 import com.bumptech.glide.load.engine.GlideException;
 import com.bumptech.glide.load.resource.bitmap.DownsampleStrategy;
 import com.bumptech.glide.load.resource.bitmap.Rotate;
@@ -40,6 +41,9 @@ import com.maxwai.nclientv3.files.PageFile;
 import com.maxwai.nclientv3.github.chrisbanes.photoview.PhotoView;
 import com.maxwai.nclientv3.settings.Global;
 import com.maxwai.nclientv3.utility.LogUtility;
+import com.maxwai.nclientv3.utility.network.MirrorPool;
+
+import java.io.IOException;
 
 public class ZoomFragment extends Fragment {
 
@@ -239,6 +243,10 @@ public class ZoomFragment extends Fragment {
                 @Override
                 public boolean onLoadFailed(@Nullable GlideException e, Object model, @NonNull Target<Drawable> target, boolean isFirstResource) {
                     completedDownload = false;
+                    // the retry button will ask the pool again and get another server
+                    String host = model instanceof Uri ? ((Uri) model).getHost() : null;
+                    if (host != null && isServerFailure(e))
+                        MirrorPool.getInstance().reportFailure(host);
                     return false;
                 }
 
@@ -262,13 +270,28 @@ public class ZoomFragment extends Fragment {
         } else {
             if (url == null) request = glide.load(R.mipmap.ic_launcher);
             else {
-                LogUtility.d("Requested url glide: " + url);
-                request = glide.load(url);
+                Uri mirrored = MirrorPool.getInstance().rewrite(url);
+                LogUtility.d("Requested url glide: " + mirrored);
+                request = glide.load(mirrored);
             }
         }
         return request;
     }
 
+    /**
+     * @return true if the image server is to blame, a missing page or a bad image is not
+     */
+    private static boolean isServerFailure(@Nullable GlideException e) {
+        if (e == null) return false;
+        for (Throwable cause : e.getRootCauses()) {
+            if (cause instanceof HttpException) {
+                int status = ((HttpException) cause).getStatusCode();
+                if (status >= 500 || status == 429 || status == HttpException.UNKNOWN) return true;
+            } else if (cause instanceof IOException) return true;
+        }
+        return false;
+    }
+
     public Drawable getDrawable() {
         return photoView.getDrawable();
     }
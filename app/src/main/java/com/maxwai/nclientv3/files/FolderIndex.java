@@ -0,0 +1,140 @@
+package com.maxwai.nclientv3.files;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.SparseArrayCompat;
+
+import com.maxwai.nclientv3.async.database.Queries;
+import com.maxwai.nclientv3.async.downloader.GalleryDownloaderV2;
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Persistent gallery id to download folder index.
+ * <p>
+ * The download folders are walked once to fill it, then it is kept up to date by the
+ * downloader and by the local galleries screen. An entry whose folder has been moved or
+ * deleted is dropped when it is looked up. A gallery downloaded as cbz is indexed by its
+ * archive, which has no id file, so those entries are kept when the folders are walked again.
+ * <p>
+ * A missing id is only trusted while the download folders look like they did at the last walk:
+ * same folders, same {@link File#lastModified()}. A gallery copied in from outside the app
+ * changes its download folder, and the next lookup walks them again.
+ */
+public class FolderIndex {
+    private static final String PREFERENCES_NAME = "FolderIndex";
+    private static final String KEY_WALKED = "walked";
+    private static final String ARCHIVE_EXTENSION = ".cbz";
+    // download folders at the last walk, see #snapshot
+    @Nullable
+    private static volatile String walked;
+
+    private FolderIndex() {
+    }
+
+    /**
+     * @return the folder containing the gallery, null if it isn't downloaded or only as archive
+     */
+    @Nullable
+    public static File find(@NonNull Context context, int id) {
+        if (id < 1) return null;
+        String path = Queries.FolderTable.getPath(id);
+        if (path != null) {
+            File folder = new File(path);
+            if (isArchive(folder)) return null;
+            if (isFolderOf(folder, id)) return folder;
+            // moved or deleted, a new walk finds where it went
+            LogUtility.d("Folder of " + id + " is gone: " + path);
+        } else if (isUpToDate(context)) return null;
+        rebuild(context);
+        path = Queries.FolderTable.getPath(id);
+        return path == null || isArchive(new File(path)) ? null : new File(path);
+    }
+
+    /**
+     * @return true if the gallery has been downloaded, to a folder or to an archive
+     */
+    public static boolean isDownloaded(@NonNull Context context, int id) {
+        String path = id < 1 ? null : Queries.FolderTable.getPath(id);
+        if (path != null && isArchive(new File(path))) {
+            if (new File(path).isFile()) return true;
+            LogUtility.d("Archive of " + id + " is gone: " + path);
+            remove(id);
+        }
+        return find(context, id) != null;
+    }
+
+    /**
+     * @param file the folder of the gallery or its cbz archive
+     */
+    public static void put(int id, @NonNull File file) {
+        Queries.FolderTable.insert(id, file.getAbsolutePath());
+    }
+
+    public static void remove(int id) {
+        Queries.FolderTable.remove(id);
+    }
+
+    private static boolean isArchive(File file) {
+        return file.getName().endsWith(ARCHIVE_EXTENSION);
+    }
+
+    private static boolean isFolderOf(File folder, int id) {
+        return new File(folder, "." + id).exists();
+    }
+
+    /**
+     * @return true if the download folders haven't changed since the last walk
+     */
+    private static boolean isUpToDate(Context context) {
+        if (walked == null)
+            walked = context.getSharedPreferences(PREFERENCES_NAME, 0).getString(KEY_WALKED, null);
+        return snapshot(Global.getDownloadFolders(context)).equals(walked);
+    }
+
+    /**
+     * @return the path and last modification of every download folder, any gallery added or
+     * removed in one of them changes it
+     */
+    private static String snapshot(List<File> folders) {
+        StringBuilder builder = new StringBuilder();
+        for (File dir : folders)
+            builder.append(dir.getAbsolutePath()).append(':').append(dir.lastModified()).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * Walks every download folder and replaces the index with the galleries found, the
+     * indexed archives which still exist are kept
+     */
+    public static synchronized void rebuild(@NonNull Context context) {
+        List<File> folders = Global.getDownloadFolders(context);
+        // taken before the walk, a gallery added meanwhile triggers another one
+        String snapshot = snapshot(folders);
+        SparseArrayCompat<String> paths = new SparseArrayCompat<>();
+        SparseArrayCompat<String> indexed = Queries.FolderTable.getAll();
+        for (int i = 0; i < indexed.size(); i++) {
+            File file = new File(indexed.valueAt(i));
+            if (isArchive(file) && file.isFile()) paths.put(indexed.keyAt(i), indexed.valueAt(i));
+        }
+        for (File dir : folders) {
+            File[] galleries = dir.listFiles(File::isDirectory);
+            if (galleries == null) continue;
+            for (File gallery : galleries) {
+                String[] idFiles = gallery.list((d, name) -> GalleryDownloaderV2.ID_FILE.matcher(name).matches());
+                if (idFiles == null) continue;
+                for (String idFile : idFiles)
+                    paths.put(Integer.parseInt(idFile.substring(1)), gallery.getAbsolutePath());
+            }
+        }
+        Queries.FolderTable.replaceAll(paths);
+        walked = snapshot;
+        context.getSharedPreferences(PREFERENCES_NAME, 0).edit().putString(KEY_WALKED, snapshot).apply();
+        LogUtility.d("Folder index rebuilt with " + paths.size() + " galleries");
+    }
+}
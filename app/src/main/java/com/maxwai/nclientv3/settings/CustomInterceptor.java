@@ -78,7 +78,7 @@ public class CustomInterceptor implements Interceptor {
                 response.close();
                 throw e;
             }
-            if (context != null) Global.reloadHttpClient(context);
+            if (context != null) Global.reloadCookies(context);
             response.close();
             response = Global.client.newCall(request.newBuilder().addHeader("rec", "1").build()).execute();
         }
@@ -10,6 +10,8 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -33,23 +35,31 @@ import com.maxwai.nclientv3.api.enums.SortType;
 import com.maxwai.nclientv3.api.enums.TitleType;
 import com.maxwai.nclientv3.api.local.LocalSortType;
 import com.maxwai.nclientv3.components.CustomCookieJar;
+import com.maxwai.nclientv3.files.FolderIndex;
 import com.maxwai.nclientv3.utility.LogUtility;
 import com.maxwai.nclientv3.utility.Utility;
 import com.maxwai.nclientv3.utility.AppExecutors;
+import com.maxwai.nclientv3.utility.network.CachePolicyInterceptor;
+import com.maxwai.nclientv3.utility.network.MirrorInterceptor;
 import com.maxwai.nclientv3.utility.network.NetworkUtil;
+import com.maxwai.nclientv3.utility.network.RateLimitInterceptor;
 import com.franmontiel.persistentcookiejar.cache.SetCookieCache;
 import com.franmontiel.persistentcookiejar.persistence.SharedPrefsCookiePersistor;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import me.zhanghai.android.fastscroll.FastScrollerBuilder;
+import okhttp3.Cache;
 import okhttp3.Cookie;
 import okhttp3.OkHttpClient;
 
@@ -63,8 +73,10 @@ public class Global {
     private static final String ZIPFOLDER_NAME = "ZIP";
     private static final String BACKUPFOLDER_NAME = "Backup";
     private static final String TORRENTFOLDER_NAME = "Torrents";
+    private static final String HTTP_CACHE_DIR = "http";
+    private static final long HTTP_CACHE_SIZE = 20L * 1024 * 1024;
     private static final DisplayMetrics lastDisplay = new DisplayMetrics();
-    public static OkHttpClient client = null;
+    public static volatile OkHttpClient client = null;
     public static File MAINFOLDER;
     public static File DOWNLOADFOLDER;
     public static File SCREENFOLDER;
@@ -82,8 +94,10 @@ public class Global {
     private static String lastVersion, mirror;
     private static int maxHistory, columnCount, maxId, galleryWidth = -1, galleryHeight = -1;
     private static int colPortStat, colLandStat, colPortHist, colLandHist, colPortMain, colLandMain, colPortDownload, colLandDownload, colLandFavorite, colPortFavorite;
-    private static boolean infiniteScrollMain, infiniteScrollFavorite, exactTagMatch;
-    private static int defaultZoom, offscreenLimit;
+    private static boolean infiniteScrollMain, infiniteScrollFavorite, exactTagMatch, downloadAsArchive;
+    private static int defaultZoom, offscreenLimit, downloadPageThreads, downloadGallerySlots;
+    private static int prefetchPages, prefetchThreshold;
+    private static int bandwidthCapWifi, bandwidthCapMobile, dailyBudgetWifi, dailyBudgetMobile;
     private static Point screenSize;
     private static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Linux; Android 6.0; Nexus 5 Build/MRA58N)";
     private static String userAgent = DEFAULT_USER_AGENT;
@@ -310,6 +324,18 @@ public class Global {
         // Neighbor preloading is also capped separately in ZoomActivity.
         int prefOffscreen = shared.getInt(context.getString(R.string.preference_key_offscreen_limit), 1);
         offscreenLimit = Math.max(1, Math.min(2, prefOffscreen));
+        int prefPageThreads = shared.getInt(context.getString(R.string.preference_key_download_page_threads), 4);
+        downloadPageThreads = Math.max(1, Math.min(8, prefPageThreads));
+        int prefGallerySlots = shared.getInt(context.getString(R.string.preference_key_download_gallery_slots), 2);
+        downloadGallerySlots = Math.max(1, Math.min(4, prefGallerySlots));
+        // caps in KB/s and budgets in MB, 0 means unlimited
+        bandwidthCapWifi = Math.max(0, shared.getInt(context.getString(R.string.preference_key_bandwidth_cap_wifi), 0));
+        bandwidthCapMobile = Math.max(0, shared.getInt(context.getString(R.string.preference_key_bandwidth_cap_mobile), 0));
+        dailyBudgetWifi = Math.max(0, shared.getInt(context.getString(R.string.preference_key_daily_budget_wifi), 0));
+        dailyBudgetMobile = Math.max(0, shared.getInt(context.getString(R.string.preference_key_daily_budget_mobile), 0));
+        downloadAsArchive = shared.getBoolean(context.getString(R.string.preference_key_download_as_archive), false);
+        prefetchPages = Math.max(0, Math.min(2, shared.getInt(context.getString(R.string.preference_key_prefetch_pages), 1)));
+        prefetchThreshold = Math.max(10, Math.min(100, shared.getInt(context.getString(R.string.preference_key_prefetch_threshold), 50)));
         maxHistory = shared.getInt(context.getString(R.string.preference_key_max_history_size), 2);
         defaultZoom = shared.getInt(context.getString(R.string.preference_key_default_zoom), 100);
         colPortMain = shared.getInt(context.getString(R.string.key_column_port_main), 2);
@@ -376,9 +402,36 @@ public class Global {
         return zoomOneColumn;
     }
 
-    public static void reloadHttpClient(@NonNull Context context) {
+    /**
+     * Reloads the saved cookies into the shared client after they have been changed outside
+     * of it (Cloudflare challenge, login). The client is never rebuilt, so the pooled
+     * connections and the calls running on its dispatcher are kept.
+     */
+    public static void reloadCookies(@NonNull Context context) {
+        OkHttpClient current = client;
+        if (current == null) {
+            initHttpClient(context);
+            return;
+        }
+        ((CustomCookieJar) current.cookieJar()).clearSession();
+        logCookies(current);
+        Login.isLogged(context);
+    }
+
+    private static void logCookies(OkHttpClient client) {
+        for (Cookie cookie : client.cookieJar().loadForRequest(Login.BASE_HTTP_URL)) {
+            LogUtility.d("Cookie: " + cookie);
+        }
+    }
+
+    /**
+     * Builds the only client of the app, user agent and cookies are applied to every request
+     * by its interceptors and cookie jar so it never needs to be replaced
+     */
+    private static OkHttpClient buildHttpClient(@NonNull Context context) {
         SharedPreferences preferences = context.getSharedPreferences("Login", 0);
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .cache(new Cache(new File(context.getCacheDir(), HTTP_CACHE_DIR), HTTP_CACHE_SIZE))
             .connectTimeout(10, TimeUnit.SECONDS)
             .readTimeout(10, TimeUnit.SECONDS)
             .writeTimeout(10, TimeUnit.SECONDS)
@@ -388,25 +441,82 @@ public class Global {
                     new SharedPrefsCookiePersistor(preferences)
                 )
             );
+        builder.addInterceptor(new CachePolicyInterceptor());
         builder.addInterceptor(new CustomInterceptor(context.getApplicationContext(), true));
-        client = builder.build();
-        client.dispatcher().setMaxRequests(25);
-        client.dispatcher().setMaxRequestsPerHost(25);
-        for (Cookie cookie : client.cookieJar().loadForRequest(Login.BASE_HTTP_URL)) {
-            LogUtility.d("Cookie: " + cookie);
-        }
-        Login.isLogged(context);
+        builder.addInterceptor(new MirrorInterceptor());
+        // innermost, so it sees the raw answer of the server before the Cloudflare handling
+        builder.addInterceptor(new RateLimitInterceptor());
+        OkHttpClient built = builder.build();
+        built.dispatcher().setMaxRequests(25);
+        built.dispatcher().setMaxRequestsPerHost(25);
+        return built;
     }
 
     private static void initHttpClient(@NonNull Context context) {
         if (client != null) return;
-        reloadHttpClient(context);
+        synchronized (Global.class) {
+            if (client != null) return;
+            client = buildHttpClient(context);
+        }
+        logCookies(client);
+        Login.isLogged(context);
     }
 
     public static int getOffscreenLimit() {
         return offscreenLimit;
     }
 
+    /**
+     * @return how many pages after the last one are loaded in advance with infinite scroll
+     */
+    public static int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * @return percentage of the last page to scroll before the next ones are prefetched
+     */
+    public static int getPrefetchThreshold() {
+        return prefetchThreshold;
+    }
+
+    /**
+     * @return how many pages of a single gallery may be fetched at the same time
+     */
+    public static int getDownloadPageThreads() {
+        return Math.max(1, downloadPageThreads);
+    }
+
+    /**
+     * @return how many galleries the download worker processes at the same time
+     */
+    public static int getDownloadGallerySlots() {
+        return Math.max(1, downloadGallerySlots);
+    }
+
+    /**
+     * @return the download speed cap in bytes per second for the connection type, 0 if unlimited
+     */
+    public static long getBandwidthCap(NetworkUtil.ConnectionType type) {
+        int cap = type == NetworkUtil.ConnectionType.CELLULAR ? bandwidthCapMobile : bandwidthCapWifi;
+        return cap * 1024L;
+    }
+
+    /**
+     * @return how many bytes the downloads may use in a day on the connection type, 0 if unlimited
+     */
+    public static long getDailyBudget(NetworkUtil.ConnectionType type) {
+        int budget = type == NetworkUtil.ConnectionType.CELLULAR ? dailyBudgetMobile : dailyBudgetWifi;
+        return budget * 1024L * 1024L;
+    }
+
+    /**
+     * @return true if new downloads are written into a cbz archive instead of a folder of images
+     */
+    public static boolean isDownloadAsArchive() {
+        return downloadAsArchive;
+    }
+
     public static boolean shouldCheckForUpdates(Context context) {
         return context.getSharedPreferences("Settings", 0).getBoolean(context.getString(R.string.preference_key_check_update), true);
     }
@@ -607,20 +717,107 @@ public class Global {
     public static boolean isJPEGCorrupted(String path) {
         if (!new File(path).exists()) return true;
         try (RandomAccessFile fh = new RandomAccessFile(path, "r")) {
-            long length = fh.length();
-            if (length < 10L) {
-                return true;
-            }
-            fh.seek(length - 2);
-            byte[] eoi = new byte[2];
-            fh.read(eoi);
-            return eoi[0] != (byte) 0xFF || eoi[1] != (byte) 0xD9; // FF D9
+            return isJPEGCorrupted(fh, 0);
         } catch (IOException e) {
             LogUtility.e(e.getMessage(), e);
         }
         return true;
     }
 
+    /**
+     * Checks the structure of an image without decoding it, the format is taken from the
+     * file signature so the name (.part, .webp.webp, ...) doesn't matter.
+     * Unknown formats are decoded at a low sample size.
+     */
+    public static boolean isImageCorrupted(String path) {
+        try (RandomAccessFile fh = new RandomAccessFile(path, "r")) {
+            return isImageCorrupted(fh, 0);
+        } catch (IOException e) {
+            LogUtility.e(e.getMessage(), e);
+            return true;
+        }
+    }
+
+    /**
+     * Same as {@link #isImageCorrupted(String)} for an image stored at the end of a bigger
+     * file, like the last entry of an archive
+     *
+     * @param start offset of the first byte of the image, which runs to the end of the file
+     */
+    public static boolean isImageCorrupted(RandomAccessFile fh, long start) throws IOException {
+        byte[] header = new byte[12];
+        if (fh.length() - start < header.length) return true;
+        fh.seek(start);
+        fh.readFully(header);
+        if ((header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8) return isJPEGCorrupted(fh, start);
+        if ((header[0] & 0xFF) == 0x89 && startsWith(header, 1, "PNG")) return isPNGCorrupted(fh, start);
+        if (startsWith(header, 0, "RIFF") && startsWith(header, 8, "WEBP")) return isWebPCorrupted(fh, start);
+        if (startsWith(header, 0, "GIF8")) return isGIFCorrupted(fh, start);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 256;
+        Bitmap bitmap = BitmapFactory.decodeStream(Channels.newInputStream(fh.getChannel().position(start)), null, options);
+        if (bitmap == null) return true;
+        bitmap.recycle();
+        return false;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, String ascii) {
+        for (int i = 0; i < ascii.length(); i++)
+            if (bytes[offset + i] != (byte) ascii.charAt(i)) return false;
+        return true;
+    }
+
+    private static boolean isJPEGCorrupted(RandomAccessFile fh, long start) throws IOException {
+        long length = fh.length();
+        if (length - start < 10L) {
+            return true;
+        }
+        fh.seek(length - 2);
+        byte[] eoi = new byte[2];
+        fh.readFully(eoi);
+        return eoi[0] != (byte) 0xFF || eoi[1] != (byte) 0xD9; // FF D9
+    }
+
+    /**
+     * The last chunk must be an empty IEND with a valid CRC
+     */
+    private static boolean isPNGCorrupted(RandomAccessFile fh, long start) throws IOException {
+        long length = fh.length();
+        if (length - start < 8 + 12) return true;
+        fh.seek(length - 12);
+        byte[] chunk = new byte[12];
+        fh.readFully(chunk);
+        if (chunk[0] != 0 || chunk[1] != 0 || chunk[2] != 0 || chunk[3] != 0) return true;
+        if (!startsWith(chunk, 4, "IEND")) return true;
+        CRC32 crc = new CRC32();
+        crc.update("IEND".getBytes(StandardCharsets.US_ASCII));
+        long stored = ((chunk[8] & 0xFFL) << 24) | ((chunk[9] & 0xFFL) << 16) | ((chunk[10] & 0xFFL) << 8) | (chunk[11] & 0xFFL);
+        return stored != crc.getValue();
+    }
+
+    /**
+     * The RIFF header stores the size of the whole file, a truncated file is shorter than that
+     */
+    private static boolean isWebPCorrupted(RandomAccessFile fh, long start) throws IOException {
+        long length = fh.length() - start;
+        if (length < 12) return true;
+        byte[] size = new byte[4];
+        fh.seek(start + 4);
+        fh.readFully(size);
+        long riffSize = (size[0] & 0xFFL) | ((size[1] & 0xFFL) << 8) | ((size[2] & 0xFFL) << 16) | ((size[3] & 0xFFL) << 24);
+        return riffSize < 4 || length < riffSize + 8;
+    }
+
+    /**
+     * A complete GIF ends with the 0x3B trailer
+     */
+    private static boolean isGIFCorrupted(RandomAccessFile fh, long start) throws IOException {
+        long length = fh.length();
+        if (length - start < 14) return true;
+        fh.seek(length - 1);
+        return fh.read() != 0x3B;
+    }
+
     private static File findGalleryFolder(File directory, int id) {
         if (directory == null || !directory.exists() || !directory.isDirectory()) return null;
         String fileName = "." + id;
@@ -643,13 +840,18 @@ public class Global {
     public static File findGalleryFolder(Context context, int id) {
         if (id < 1) return null;
         if (context == null) return findGalleryFolder(id);
-        for (File dir : getUsableFolders(context)) {
-            dir = new File(dir, MAINFOLDER_NAME);
-            dir = new File(dir, DOWNLOADFOLDER_NAME);
-            File f = findGalleryFolder(dir, id);
-            if (f != null) return f;
-        }
-        return null;
+        return FolderIndex.find(context, id);
+    }
+
+    /**
+     * @return the download folder of every usable storage, they may not exist
+     */
+    @NonNull
+    public static List<File> getDownloadFolders(Context context) {
+        List<File> folders = new ArrayList<>();
+        for (File dir : getUsableFolders(context))
+            folders.add(new File(new File(dir, MAINFOLDER_NAME), DOWNLOADFOLDER_NAME));
+        return folders;
     }
 
     public static void initActivity(AppCompatActivity context) {
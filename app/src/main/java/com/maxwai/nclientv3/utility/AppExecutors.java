@@ -8,6 +8,7 @@ import androidx.core.content.ContextCompat;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -16,6 +17,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public final class AppExecutors {
     private static final ExecutorService IO = Executors.newFixedThreadPool(2, new NamedThreadFactory("io"));
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("scheduler"));
 
     private AppExecutors() {
     }
@@ -25,6 +27,22 @@ public final class AppExecutors {
         return IO;
     }
 
+    /**
+     * Shared timer thread, scheduled tasks must be short and hand heavy work to another executor.
+     */
+    @NonNull
+    public static ScheduledExecutorService scheduler() {
+        return SCHEDULER;
+    }
+
+    /**
+     * Creates a dedicated fixed-size pool; the caller owns it and must shut it down.
+     */
+    @NonNull
+    public static ExecutorService newFixedPool(@NonNull String name, int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new NamedThreadFactory(name));
+    }
+
     @NonNull
     public static Executor main(@NonNull Context context) {
         return ContextCompat.getMainExecutor(context.getApplicationContext());
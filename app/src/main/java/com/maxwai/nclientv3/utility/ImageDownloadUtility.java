@@ -26,7 +26,6 @@ import com.maxwai.nclientv3.settings.Global;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -182,16 +181,14 @@ public class ImageDownloadUtility {
                 loadImageOp(context, imageView, gallery, () -> getUrlForGallery(gallery, page, shouldFull), angle, this, true);
             }
             LogUtility.d("Failed getting image with extension " + gallery.getPageExtensionString(page));
-            Arrays.stream(ImageExt.values())
-                .filter(imageExt -> !triedExtensions.contains(imageExt))
-                .findAny()
-                .ifPresent(imageExt -> {
-                    LogUtility.d("Trying again with extension " + imageExt.getName());
-                    triedExtensions.add(imageExt);
-                    gallery.setPageExtensionFrom(page, imageExt);
-                    getUrlForGallery(gallery, page, shouldFull);
-                    loadImageOp(context, imageView, gallery, () -> getUrlForGallery(gallery, page, shouldFull), angle, this, true);
-                });
+            ImageExt imageExt = ImageExt.firstNotIn(triedExtensions);
+            if (imageExt != null) {
+                LogUtility.d("Trying again with extension " + imageExt.getName());
+                triedExtensions.add(imageExt);
+                gallery.setPageExtensionFrom(page, imageExt);
+                getUrlForGallery(gallery, page, shouldFull);
+                loadImageOp(context, imageView, gallery, () -> getUrlForGallery(gallery, page, shouldFull), angle, this, true);
+            }
         }
     }
 }
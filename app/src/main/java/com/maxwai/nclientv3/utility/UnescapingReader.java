@@ -0,0 +1,72 @@
+package com.maxwai.nclientv3.utility;
+
+import androidx.annotation.NonNull;
+
+import java.io.Reader;
+
+/**
+ * Reads a range of a string decoding the escapes of a javascript string literal while it goes,
+ * so the decoded text is never stored.
+ * <p>
+ * {@code \}{@code uXXXX}, {@code \n} and {@code \t} are decoded, any other escape is left as it is.
+ */
+public class UnescapingReader extends Reader {
+    private final CharSequence source;
+    private final int end;
+    private int position;
+    // second character of an escape which didn't fit the last read
+    private int pending = -1;
+
+    public UnescapingReader(@NonNull CharSequence source, int start, int end) {
+        this.source = source;
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read(@NonNull char[] buffer, int offset, int length) {
+        if (length == 0) return 0;
+        if (pending < 0 && position >= end) return -1;
+        int written = 0;
+        if (pending >= 0) {
+            buffer[offset + written++] = (char) pending;
+            pending = -1;
+        }
+        while (written < length && position < end) {
+            char c = source.charAt(position++);
+            if (c != '\\' || position >= end) {
+                buffer[offset + written++] = c;
+                continue;
+            }
+            char escaped = source.charAt(position++);
+            switch (escaped) {
+                case 'u':
+                    int toCreate = 0;
+                    for (int i = 0; i < 4; i++) {
+                        toCreate *= 16;
+                        toCreate += position < end ? Character.digit(source.charAt(position++), 16) : -1;
+                    }
+                    buffer[offset + written++] = (char) toCreate;
+                    break;
+                case 'n':
+                    buffer[offset + written++] = '\n';
+                    break;
+                case 't':
+                    buffer[offset + written++] = '\t';
+                    break;
+                default:
+                    buffer[offset + written++] = '\\';
+                    if (written < length) buffer[offset + written++] = escaped;
+                    else pending = escaped;
+                    break;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void close() {
+        position = end;
+        pending = -1;
+    }
+}
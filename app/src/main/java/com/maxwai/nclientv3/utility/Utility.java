@@ -20,20 +20,30 @@ import com.maxwai.nclientv3.R;
 import com.maxwai.nclientv3.settings.Global;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
 
 public class Utility {
     public static final Random RANDOM = new Random(System.nanoTime());
     public static final String ORIGINAL_URL = "nhentai.net";
     public static final String PROTOCOL = "https://";
+    private static final long WRITE_BATCH_SIZE = 1 << 16;
+    // size of the okio segments, only used to size the list of a batch
+    private static final int SEGMENT_SIZE = 8192;
 
     public static String getBaseUrl() {
         return "https://" + Utility.getHost() + "/";
@@ -44,45 +54,18 @@ public class Utility {
         return Global.getMirror();
     }
 
-    private static void parseEscapedCharacter(Reader reader, Writer writer) throws IOException {
-        int toCreate, read;
-        switch (read = reader.read()) {
-            case 'u':
-                toCreate = 0;
-                for (int i = 0; i < 4; i++) {
-                    toCreate *= 16;
-                    toCreate += Character.digit(reader.read(), 16);
-                }
-                writer.write(toCreate);
-                break;
-            case 'n':
-                writer.write('\n');
-                break;
-            case 't':
-                writer.write('\t');
-                break;
-            default:
-                writer.write('\\');
-                writer.write(read);
-                break;
-        }
-    }
-
     @NonNull
     public static String unescapeUnicodeString(@Nullable String scriptHtml) {
         if (scriptHtml == null) return "";
-        StringReader reader = new StringReader(scriptHtml);
-        StringWriter writer = new StringWriter();
-        int actualChar;
-        try {
-            while ((actualChar = reader.read()) != -1) {
-                if (actualChar != '\\') writer.write(actualChar);
-                else parseEscapedCharacter(reader, writer);
-            }
+        StringBuilder builder = new StringBuilder(scriptHtml.length());
+        char[] buffer = new char[1024];
+        int read;
+        try (Reader reader = new UnescapingReader(scriptHtml, 0, scriptHtml.length())) {
+            while ((read = reader.read(buffer)) != -1) builder.append(buffer, 0, read);
         } catch (IOException ignore) {
             return "";
         }
-        return writer.toString();
+        return builder.toString();
     }
 
     public static void threadSleep(long millis) {
@@ -137,20 +120,88 @@ public class Utility {
     }
 
     public static long writeStreamToFile(InputStream inputStream, File filePath) throws IOException {
-        try (inputStream;
-             FileOutputStream outputStream = new FileOutputStream(filePath)) {
-            int read;
+        return writeStreamToFile(inputStream, filePath, false);
+    }
+
+    /**
+     * @param append if true the bytes are added at the end of the file instead of replacing it
+     * @return the number of bytes written by this call
+     */
+    public static long writeStreamToFile(InputStream inputStream, File filePath, boolean append) throws IOException {
+        return writeStreamToFile(inputStream, filePath, append, null);
+    }
+
+    /**
+     * @param checksum if not null, it is updated with every byte written
+     */
+    public static long writeStreamToFile(InputStream inputStream, File filePath, boolean append, @Nullable Checksum checksum) throws IOException {
+        return writeSourceToFile(Okio.buffer(Okio.source(inputStream)), filePath, append, checksum, false);
+    }
+
+    /**
+     * Drains the source into the file in batches of {@link #WRITE_BATCH_SIZE} bytes, each written
+     * with a single gathering write of the segments of the source, without copying them into
+     * another buffer; the source is closed at the end.
+     *
+     * @param append   if true the bytes are added at the end of the file instead of replacing it
+     * @param checksum if not null, it is updated with every byte written
+     * @param sync     if true the data is flushed to the storage device before returning
+     * @return the number of bytes written by this call
+     */
+    public static long writeSourceToFile(BufferedSource source, File filePath, boolean append, @Nullable Checksum checksum, boolean sync) throws IOException {
+        try (source;
+             FileOutputStream outputStream = new FileOutputStream(filePath, append);
+             FileChannel channel = outputStream.getChannel()) {
+            Buffer buffer = new Buffer();
             long totalByte = 0;
-            byte[] bytes = new byte[1024];
-            while ((read = inputStream.read(bytes)) != -1) {
-                outputStream.write(bytes, 0, read);
-                totalByte += read;
+            boolean exhausted = false;
+            while (!exhausted) {
+                while (buffer.size() < WRITE_BATCH_SIZE) {
+                    if (source.read(buffer, WRITE_BATCH_SIZE - buffer.size()) < 0) {
+                        exhausted = true;
+                        break;
+                    }
+                }
+                totalByte += writeBuffer(buffer, channel, checksum);
             }
-            outputStream.flush();
+            if (sync) channel.force(false);
             return totalByte;
         }
     }
 
+    /**
+     * Writes the segments of buffer to the channel in place and empties it
+     *
+     * @param checksum if not null, it is updated with the bytes written
+     */
+    private static long writeBuffer(Buffer buffer, FileChannel channel, @Nullable Checksum checksum) throws IOException {
+        long size = buffer.size();
+        if (size == 0) return 0;
+        List<ByteBuffer> segments = new ArrayList<>((int) (size / SEGMENT_SIZE) + 1);
+        try (Buffer.UnsafeCursor cursor = buffer.readUnsafe()) {
+            for (int length = cursor.seek(0); length > 0; length = cursor.next()) {
+                if (checksum != null) checksum.update(cursor.data, cursor.start, length);
+                segments.add(ByteBuffer.wrap(cursor.data, cursor.start, length));
+            }
+        }
+        ByteBuffer[] array = segments.toArray(new ByteBuffer[0]);
+        long written = 0;
+        while (written < size) written += channel.write(array);
+        buffer.clear();
+        return size;
+    }
+
+    public static int crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            int read;
+            byte[] bytes = new byte[1 << 16];
+            while ((read = inputStream.read(bytes)) != -1)
+                crc.update(bytes, 0, read);
+        }
+        return (int) crc.getValue();
+    }
+
     public static void sendImage(Context context, Drawable drawable, String text) {
         context = context.getApplicationContext();
         try {
@@ -181,5 +232,4 @@ public class Utility {
         }
 
     }
-
 }
@@ -0,0 +1,150 @@
+package com.maxwai.nclientv3.utility.network;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.LocalDate;
+import java.util.EnumMap;
+import java.util.Locale;
+
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Source;
+
+/**
+ * Token bucket shared by the gallery downloads.
+ * <p>
+ * Rate and daily budget depend on the current {@link NetworkUtil.ConnectionType},
+ * the bucket is reset when the connection changes so the new cap is applied at once.
+ * Used bytes are persisted per day so the budget survives process restarts.
+ */
+public class BandwidthLimiter {
+    private static final String PREFERENCES_NAME = "Bandwidth";
+    private static final String KEY_DAY = "day";
+    private static final long MIN_BUCKET_SIZE = 64 * 1024;
+    private static final long PERSIST_EVERY = 1024 * 1024;
+    private static final BandwidthLimiter INSTANCE = new BandwidthLimiter();
+    private final EnumMap<NetworkUtil.ConnectionType, Long> used = new EnumMap<>(NetworkUtil.ConnectionType.class);
+    @Nullable
+    private SharedPreferences preferences;
+    private NetworkUtil.ConnectionType type = NetworkUtil.ConnectionType.WIFI;
+    private long day = LocalDate.now().toEpochDay();
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long unsaved;
+
+    private BandwidthLimiter() {
+        for (NetworkUtil.ConnectionType t : NetworkUtil.ConnectionType.values()) used.put(t, 0L);
+    }
+
+    @NonNull
+    public static BandwidthLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    private static String usedKey(NetworkUtil.ConnectionType type) {
+        return "used_" + type.name().toLowerCase(Locale.US);
+    }
+
+    public synchronized void initialize(@NonNull Context context) {
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, 0);
+        if (preferences.getLong(KEY_DAY, -1) != day) return;
+        for (NetworkUtil.ConnectionType t : NetworkUtil.ConnectionType.values())
+            used.put(t, preferences.getLong(usedKey(t), 0));
+    }
+
+    /**
+     * Called by {@link NetworkUtil#setType} when the active connection changes
+     */
+    public synchronized void setConnectionType(@NonNull NetworkUtil.ConnectionType type) {
+        if (this.type == type) return;
+        this.type = type;
+        // don't carry the debt (or the burst) of the previous link over
+        tokens = 0;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return true if today's budget for the current connection has been used up
+     */
+    public synchronized boolean isBudgetExhausted() {
+        rollDay();
+        long budget = Global.getDailyBudget(type);
+        return budget > 0 && used.get(type) >= budget;
+    }
+
+    /**
+     * Wraps source so every byte read from it is accounted and throttled
+     */
+    @NonNull
+    public Source throttle(@NonNull Source source) {
+        return new ForwardingSource(source) {
+            @Override
+            public long read(@NonNull Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+                if (read > 0) acquire(read);
+                return read;
+            }
+        };
+    }
+
+    private void acquire(long bytes) throws IOException {
+        long wait;
+        synchronized (this) {
+            rollDay();
+            account(bytes);
+            long rate = Global.getBandwidthCap(type);
+            if (rate <= 0) return;
+            refill(rate);
+            // tokens may go negative, the debt is paid by sleeping outside the lock
+            tokens -= bytes;
+            if (tokens >= 0) return;
+            wait = (long) (-tokens * 1000 / rate);
+        }
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    private void refill(long rate) {
+        long now = System.nanoTime();
+        double capacity = Math.max(MIN_BUCKET_SIZE, rate);
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+    private void account(long bytes) {
+        used.put(type, used.get(type) + bytes);
+        unsaved += bytes;
+        if (unsaved >= PERSIST_EVERY) persist();
+    }
+
+    private void rollDay() {
+        long today = LocalDate.now().toEpochDay();
+        if (today == day) return;
+        day = today;
+        for (NetworkUtil.ConnectionType t : NetworkUtil.ConnectionType.values()) used.put(t, 0L);
+        persist();
+    }
+
+    private void persist() {
+        unsaved = 0;
+        if (preferences == null) return;
+        SharedPreferences.Editor editor = preferences.edit().putLong(KEY_DAY, day);
+        for (NetworkUtil.ConnectionType t : NetworkUtil.ConnectionType.values())
+            editor.putLong(usedKey(t), used.get(t));
+        editor.apply();
+        LogUtility.d("Bandwidth used today: " + used);
+    }
+}
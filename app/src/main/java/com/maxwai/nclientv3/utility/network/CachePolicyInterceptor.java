@@ -0,0 +1,39 @@
+package com.maxwai.nclientv3.utility.network;
+
+import androidx.annotation.NonNull;
+
+import com.maxwai.nclientv3.utility.Utility;
+
+import java.io.IOException;
+
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Keeps the disk cache for the search pages, the gallery pages and the API.
+ * <p>
+ * Images are already saved by the downloads and by Glide, favorites depend on the session
+ * and random galleries must not repeat, so these requests are never stored. The stored ones
+ * are revalidated by OkHttp with their ETag or Last-Modified.
+ */
+public class CachePolicyInterceptor implements Interceptor {
+    // only keeps OkHttp from storing the response, no-cache would make the CDN revalidate every image
+    private static final CacheControl NO_STORE = new CacheControl.Builder().noStore().build();
+
+    @NonNull
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (isCacheable(request)) return chain.proceed(request);
+        return chain.proceed(request.newBuilder().cacheControl(NO_STORE).build());
+    }
+
+    private static boolean isCacheable(Request request) {
+        if (!request.method().equals("GET") || !request.url().host().equals(Utility.getHost()))
+            return false;
+        String path = request.url().encodedPath();
+        return !path.startsWith("/favorites") && !path.startsWith("/random");
+    }
+}
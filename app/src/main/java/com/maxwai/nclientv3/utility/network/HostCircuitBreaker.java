@@ -0,0 +1,84 @@
+package com.maxwai.nclientv3.utility.network;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops the downloads from hammering a host which keeps failing.
+ * <p>
+ * After enough consecutive failures the host is open for a cooldown which doubles every time
+ * it trips again. Once the cooldown is over a single trial request is let through: a success
+ * closes the breaker, a failure opens it again.
+ */
+public class HostCircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long BASE_COOLDOWN_MS = 30_000;
+    private static final long MAX_COOLDOWN_MS = 10 * 60_000;
+    // a trial which never reports back (canceled download) doesn't keep the host locked
+    private static final long TRIAL_TIMEOUT_MS = 60_000;
+    private static final long MIN_WAIT_MS = 1000;
+    private static final HostCircuitBreaker INSTANCE = new HostCircuitBreaker();
+    private final Map<String, State> states = new HashMap<>();
+
+    private HostCircuitBreaker() {
+    }
+
+    @NonNull
+    public static HostCircuitBreaker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return false if requests to host must not be sent now
+     */
+    public synchronized boolean allow(@NonNull String host) {
+        State state = states.get(host);
+        if (state == null || state.openUntil == 0) return true;
+        long now = SystemClock.elapsedRealtime();
+        if (now < state.openUntil) return false;
+        if (state.trialStartedAt > 0 && now - state.trialStartedAt < TRIAL_TIMEOUT_MS) return false;
+        state.trialStartedAt = now;
+        return true;
+    }
+
+    /**
+     * @return when requests to a host refused by {@link #allow(String)} may be tried again,
+     * in {@link SystemClock#elapsedRealtime()} time
+     */
+    public synchronized long retryAt(@NonNull String host) {
+        State state = states.get(host);
+        long now = SystemClock.elapsedRealtime();
+        // while a trial runs the answer comes soon, a short wait is enough
+        return Math.max(state == null ? 0 : state.openUntil, now + MIN_WAIT_MS);
+    }
+
+    public synchronized void recordSuccess(@NonNull String host) {
+        if (states.remove(host) != null) LogUtility.d("Circuit closed for " + host);
+    }
+
+    public synchronized void recordFailure(@NonNull String host) {
+        State state = states.get(host);
+        if (state == null) {
+            state = new State();
+            states.put(host, state);
+        }
+        state.failures++;
+        if (state.trialStartedAt == 0 && state.failures < FAILURE_THRESHOLD) return;
+        state.trips++;
+        long cooldown = Math.min(MAX_COOLDOWN_MS, BASE_COOLDOWN_MS << Math.min(state.trips - 1, 16));
+        state.openUntil = SystemClock.elapsedRealtime() + cooldown;
+        state.trialStartedAt = 0;
+        LogUtility.w("Circuit open for " + host + " during " + cooldown + " ms");
+    }
+
+    private static final class State {
+        int failures, trips;
+        long openUntil, trialStartedAt;
+    }
+}
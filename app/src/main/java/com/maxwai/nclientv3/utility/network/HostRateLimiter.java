@@ -0,0 +1,115 @@
+package com.maxwai.nclientv3.utility.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.maxwai.nclientv3.utility.LogUtility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Call;
+
+/**
+ * Adaptive per-host limiter shared by every request made with the app client.
+ * <p>
+ * Each host has a concurrency window which grows additively while the host answers
+ * with success and is halved when it answers 429 or 503. In the latter case no new
+ * request is sent to the host until Retry-After (or a default back off) has passed.
+ */
+public class HostRateLimiter {
+    private static final double INITIAL_LIMIT = 4, MIN_LIMIT = 1, MAX_LIMIT = 25;
+    private static final long DEFAULT_BACKOFF_MS = 1000, MAX_BACKOFF_MS = 60_000;
+    private static final long WAIT_SLICE_MS = 250;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final HostRateLimiter INSTANCE = new HostRateLimiter();
+    private final ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<>();
+
+    private HostRateLimiter() {
+    }
+
+    @NonNull
+    public static HostRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    @NonNull
+    private HostState state(@NonNull String host) {
+        return hosts.computeIfAbsent(host, h -> new HostState());
+    }
+
+    /**
+     * Blocks until a request to host is allowed, giving up if the call gets canceled
+     */
+    public void acquire(@NonNull String host, @Nullable Call call) throws IOException {
+        HostState state = state(host);
+        synchronized (state) {
+            while (true) {
+                if (call != null && call.isCanceled()) throw new IOException("Canceled");
+                long wait = state.blockedUntil - System.currentTimeMillis();
+                if (wait <= 0 && state.inFlight < (int) state.limit) break;
+                try {
+                    state.wait(wait > 0 ? Math.min(wait, WAIT_SLICE_MS) : WAIT_SLICE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + host);
+                }
+            }
+            state.inFlight++;
+        }
+    }
+
+    /**
+     * @param code       the HTTP status received, or -1 if the request failed without a response
+     * @param retryAfter value of the Retry-After header, if any
+     */
+    public void release(@NonNull String host, int code, @Nullable String retryAfter) {
+        HostState state = state(host);
+        synchronized (state) {
+            state.inFlight = Math.max(0, state.inFlight - 1);
+            if (code == HTTP_TOO_MANY_REQUESTS || code == HttpURLConnection.HTTP_UNAVAILABLE) {
+                state.limit = Math.max(MIN_LIMIT, state.limit / 2);
+                long delay = parseRetryAfter(retryAfter);
+                state.blockedUntil = Math.max(state.blockedUntil, System.currentTimeMillis() + delay);
+                LogUtility.d("Backing off " + host + " for " + delay + "ms, limit " + state.limit);
+            } else if (code >= 200 && code < 400) {
+                state.limit = Math.min(MAX_LIMIT, state.limit + 1 / state.limit);
+            }
+            state.notifyAll();
+        }
+    }
+
+    public int getLimit(@NonNull String host) {
+        HostState state = state(host);
+        synchronized (state) {
+            return (int) state.limit;
+        }
+    }
+
+    private static long parseRetryAfter(@Nullable String retryAfter) {
+        if (retryAfter == null || retryAfter.isEmpty()) return DEFAULT_BACKOFF_MS;
+        long delay;
+        try {
+            delay = Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException ignore) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                delay = date.toInstant().toEpochMilli() - System.currentTimeMillis();
+            } catch (DateTimeParseException e) {
+                delay = DEFAULT_BACKOFF_MS;
+            }
+        }
+        return Math.max(0, Math.min(MAX_BACKOFF_MS, delay));
+    }
+
+    private static class HostState {
+        private double limit = INITIAL_LIMIT;
+        private int inFlight = 0;
+        private long blockedUntil = 0;
+    }
+}
@@ -0,0 +1,59 @@
+package com.maxwai.nclientv3.utility.network;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Sends image requests to the server chosen by {@link MirrorPool}, reports how it answered
+ * and retries once on another server when it fails, so a slow or broken server doesn't
+ * stop a download in the middle of a gallery.
+ */
+public class MirrorInterceptor implements Interceptor {
+    @NonNull
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        MirrorPool pool = MirrorPool.getInstance();
+        if (MirrorPool.isPinned(request) || !pool.isImageHost(request.url().host()))
+            return chain.proceed(request);
+        HttpUrl url = pool.rewrite(request.url());
+        try {
+            Response response = proceed(chain, request.newBuilder().url(url).build());
+            if (!isServerError(response.code())) return response;
+            HttpUrl other = pool.failover(url);
+            if (other == null) return response;
+            response.close();
+            return proceed(chain, request.newBuilder().url(other).build());
+        } catch (IOException e) {
+            if (chain.call().isCanceled()) throw e;
+            HttpUrl other = pool.failover(url);
+            if (other == null) throw e;
+            return proceed(chain, request.newBuilder().url(other).build());
+        }
+    }
+
+    private static boolean isServerError(int code) {
+        return code >= 500 || code == 429;
+    }
+
+    private static Response proceed(Chain chain, Request request) throws IOException {
+        MirrorPool pool = MirrorPool.getInstance();
+        String host = request.url().host();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            if (!chain.call().isCanceled()) pool.reportFailure(host);
+            throw e;
+        }
+        if (isServerError(response.code())) pool.reportFailure(host);
+        else pool.reportSuccess(host, response.receivedResponseAtMillis() - response.sentRequestAtMillis());
+        return response;
+    }
+}
@@ -0,0 +1,226 @@
+package com.maxwai.nclientv3.utility.network;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.maxwai.nclientv3.settings.Global;
+import com.maxwai.nclientv3.utility.AppExecutors;
+import com.maxwai.nclientv3.utility.LogUtility;
+import com.maxwai.nclientv3.utility.Utility;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Keeps track of the image servers (i1, i2, ... subdomains of the current host) and
+ * chooses the one page requests are sent to.
+ * <p>
+ * Every server has a moving average of its time to first byte and of its error rate,
+ * fed by real requests and by periodic probes. The preferred server only changes when it
+ * becomes unhealthy or another one is clearly better, so cached URLs stay valid.
+ */
+public class MirrorPool {
+    private static final String[] SUBDOMAINS = {"i1", "i2", "i3", "i4"};
+    // the plain i. host serves avatars and static files, only the numbered ones are mirrors
+    private static final Pattern IMAGE_HOST = Pattern.compile("^i\\d+\\.(.+)$");
+    private static final double ALPHA = 0.2;
+    private static final double UNHEALTHY_ERROR_RATE = 0.5;
+    private static final double SWITCH_RATIO = 0.7;
+    private static final long INITIAL_TTFB_MS = 500;
+    private static final long FAILURE_COOLDOWN_MS = 30_000;
+    private static final long PROBE_INTERVAL_MS = 10 * 60_000;
+    private static final MirrorPool INSTANCE = new MirrorPool();
+    private final Map<String, MirrorState> mirrors = new LinkedHashMap<>();
+    @Nullable
+    private String preferred;
+    private long lastProbe;
+    private boolean probing;
+
+    private MirrorPool() {
+        for (String subdomain : SUBDOMAINS) mirrors.put(subdomain, new MirrorState());
+    }
+
+    @NonNull
+    public static MirrorPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the subdomain if host is one of the image servers of the current mirror, null otherwise
+     */
+    @Nullable
+    private static String imageSubdomain(@Nullable String host) {
+        if (host == null) return null;
+        Matcher matcher = IMAGE_HOST.matcher(host);
+        if (!matcher.matches() || !Utility.getHost().equals(matcher.group(1))) return null;
+        return host.substring(0, host.indexOf('.'));
+    }
+
+    /**
+     * @return true if the request is a probe or has been pinned, it must reach the server it was made for
+     */
+    public static boolean isPinned(@NonNull Request request) {
+        return request.tag(MirrorPool.class) != null;
+    }
+
+    /**
+     * Keeps the request on the server of its url instead of the best one
+     */
+    @NonNull
+    public static Request.Builder pin(@NonNull Request.Builder request) {
+        return request.tag(MirrorPool.class, INSTANCE);
+    }
+
+    public boolean isImageHost(@Nullable String host) {
+        return imageSubdomain(host) != null;
+    }
+
+    /**
+     * @return the url pointed to the best image server, or the url itself if it isn't a page url
+     */
+    @NonNull
+    public Uri rewrite(@NonNull Uri url) {
+        if (!isImageHost(url.getHost())) return url;
+        String host = best() + "." + Utility.getHost();
+        if (host.equals(url.getHost())) return url;
+        return url.buildUpon().authority(host).build();
+    }
+
+    @NonNull
+    public HttpUrl rewrite(@NonNull HttpUrl url) {
+        if (!isImageHost(url.host())) return url;
+        return url.newBuilder().host(best() + "." + Utility.getHost()).build();
+    }
+
+    /**
+     * @return the image server to use after host failed, null if there is no other one
+     */
+    @Nullable
+    public synchronized HttpUrl failover(@NonNull HttpUrl url) {
+        String failed = imageSubdomain(url.host());
+        if (failed == null) return null;
+        String next = null;
+        double nextScore = Double.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, MirrorState> entry : mirrors.entrySet()) {
+            if (entry.getKey().equals(failed) || !entry.getValue().isHealthy(now)) continue;
+            double score = entry.getValue().score();
+            if (score < nextScore) {
+                next = entry.getKey();
+                nextScore = score;
+            }
+        }
+        if (next == null) return null;
+        return url.newBuilder().host(next + "." + Utility.getHost()).build();
+    }
+
+    public synchronized void reportSuccess(@NonNull String host, long ttfbMs) {
+        MirrorState state = mirrors.get(imageSubdomain(host));
+        if (state == null) return;
+        state.ttfb = state.ttfb * (1 - ALPHA) + ttfbMs * ALPHA;
+        state.errorRate *= 1 - ALPHA;
+    }
+
+    public synchronized void reportFailure(@NonNull String host) {
+        String subdomain = imageSubdomain(host);
+        MirrorState state = mirrors.get(subdomain);
+        if (state == null) return;
+        state.errorRate = state.errorRate * (1 - ALPHA) + ALPHA;
+        state.lastFailure = System.currentTimeMillis();
+        if (subdomain.equals(preferred) && !state.isHealthy(state.lastFailure)) {
+            LogUtility.d("Image server " + host + " is unhealthy");
+            preferred = null;
+        }
+    }
+
+    @NonNull
+    private synchronized String best() {
+        long now = System.currentTimeMillis();
+        if (now - lastProbe > PROBE_INTERVAL_MS) probeAsync();
+        MirrorState current = preferred == null ? null : mirrors.get(preferred);
+        String best = null;
+        MirrorState bestState = null;
+        for (Map.Entry<String, MirrorState> entry : mirrors.entrySet()) {
+            MirrorState state = entry.getValue();
+            if (!state.isHealthy(now)) continue;
+            if (bestState == null || state.score() < bestState.score()) {
+                best = entry.getKey();
+                bestState = state;
+            }
+        }
+        if (best == null) {
+            // everything is failing, go for the one which failed the longest time ago
+            for (Map.Entry<String, MirrorState> entry : mirrors.entrySet()) {
+                if (bestState == null || entry.getValue().lastFailure < bestState.lastFailure) {
+                    best = entry.getKey();
+                    bestState = entry.getValue();
+                }
+            }
+            return best;
+        }
+        if (current != null && current.isHealthy(now) && bestState.score() > current.score() * SWITCH_RATIO)
+            return preferred;
+        preferred = best;
+        return best;
+    }
+
+    /**
+     * Measures every image server in the background, at most once per probe interval
+     */
+    public synchronized void probeAsync() {
+        if (probing) return;
+        probing = true;
+        lastProbe = System.currentTimeMillis();
+        AppExecutors.io().execute(this::probe);
+    }
+
+    private void probe() {
+        try {
+            OkHttpClient client = Global.getClient();
+            if (client == null) return;
+            for (String subdomain : SUBDOMAINS) {
+                String host = subdomain + "." + Utility.getHost();
+                Request request = pin(new Request.Builder()
+                    .url("https://" + host + "/")
+                    .head())
+                    .build();
+                long start = System.currentTimeMillis();
+                // any answer means the server is reachable, the path doesn't need to exist
+                try (Response response = client.newCall(request).execute()) {
+                    if (response.code() >= 500) reportFailure(host);
+                    else reportSuccess(host, System.currentTimeMillis() - start);
+                } catch (IOException e) {
+                    reportFailure(host);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                probing = false;
+            }
+        }
+    }
+
+    private static class MirrorState {
+        private double ttfb = INITIAL_TTFB_MS;
+        private double errorRate;
+        private long lastFailure;
+
+        private boolean isHealthy(long now) {
+            return errorRate < UNHEALTHY_ERROR_RATE || now - lastFailure > FAILURE_COOLDOWN_MS;
+        }
+
+        private double score() {
+            return ttfb * (1 + 4 * errorRate);
+        }
+    }
+}
@@ -20,6 +20,17 @@ public class NetworkUtil {
     public static void setType(ConnectionType x) {
         LogUtility.d("new Status: " + x);
         type = x;
+        BandwidthLimiter.getInstance().setConnectionType(x);
+    }
+
+    /**
+     * @return false if the device has no network with internet access
+     */
+    public static boolean isConnected(@NonNull Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) return true;
+        NetworkCapabilities capabilities = cm.getNetworkCapabilities(cm.getActiveNetwork());
+        return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
     }
 
     private static ConnectionType getConnectivityPostLollipop(ConnectivityManager cm, Network network) {
@@ -0,0 +1,33 @@
+package com.maxwai.nclientv3.utility.network;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Routes every request through {@link HostRateLimiter}. The slot is held until the
+ * response headers arrive, the body is streamed outside of the limit.
+ */
+public class RateLimitInterceptor implements Interceptor {
+    @NonNull
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String host = request.url().host();
+        HostRateLimiter limiter = HostRateLimiter.getInstance();
+        limiter.acquire(host, chain.call());
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            limiter.release(host, -1, null);
+            throw e;
+        }
+        limiter.release(host, response.code(), response.header("Retry-After"));
+        return response;
+    }
+}
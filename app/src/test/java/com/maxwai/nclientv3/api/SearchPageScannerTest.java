@@ -0,0 +1,134 @@
+package com.maxwai.nclientv3.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Checks that {@link SearchPageScanner} reads the saved pages like the Jsoup parser it replaces
+ */
+public class SearchPageScannerTest {
+    private static final String[] PAGES = {"index.html", "search.html", "tag_last_page.html"};
+
+    private static String load(String name) throws IOException {
+        try (InputStream in = Objects.requireNonNull(SearchPageScannerTest.class.getResourceAsStream("/search_pages/" + name))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Compares a scan with what Jsoup reads from the same page, card by card
+     */
+    private static void assertSameAsJsoup(String name, String html, SearchPageScanner.Result result) {
+        Document document = Jsoup.parse(html);
+        Elements cards = document.getElementsByClass("gallery");
+        assertEquals(name + ": cards", cards.size(), result.cards.size());
+        for (int i = 0; i < cards.size(); i++) {
+            Element e = cards.get(i);
+            SearchPageScanner.Card card = result.cards.get(i);
+            Element img = Objects.requireNonNull(e.getElementsByTag("img").first());
+            String message = name + ": card " + i;
+            assertEquals(message, e.attr("data-tags"), card.tags);
+            assertEquals(message, Objects.requireNonNull(e.getElementsByTag("a").first()).attr("href"), card.href);
+            assertEquals(message, img.hasAttr("data-src") ? img.attr("data-src") : img.attr("src"), card.thumbnail);
+            assertEquals(message, Objects.requireNonNull(e.getElementsByTag("div").first()).text(), card.title);
+        }
+        Elements last = document.getElementsByClass("last");
+        assertEquals(name + ": last page", last.isEmpty() ? null : last.last().attr("href"), result.lastHref);
+    }
+
+    @Test
+    public void matchesJsoup() throws IOException {
+        for (String name : PAGES) {
+            String html = load(name);
+            SearchPageScanner.Result result = SearchPageScanner.scan(new StringReader(html));
+            assertNotNull(name, result);
+            assertSameAsJsoup(name, html, result);
+        }
+    }
+
+    @Test
+    public void matchesJsoupWhateverTheReadSize() throws IOException {
+        for (String name : PAGES) {
+            String html = load(name);
+            for (int size : new int[]{1, 2, 3, 7, 64, 8191}) {
+                SearchPageScanner.Result result = SearchPageScanner.scan(new ChunkedReader(html, size));
+                assertNotNull(name + " read by " + size, result);
+                assertSameAsJsoup(name + " read by " + size, html, result);
+            }
+        }
+    }
+
+    @Test
+    public void readsTheExpectedValues() throws IOException {
+        SearchPageScanner.Result result = SearchPageScanner.scan(new StringReader(load("tag_last_page.html")));
+        assertNotNull(result);
+        assertEquals(10, result.cards.size());
+        assertNull(result.lastHref);
+        SearchPageScanner.Card card = result.cards.get(0);
+        assertEquals("/g/402035/", card.href);
+        assertEquals("https://t4.nhentai.net/galleries/2000605/thumb.png", card.thumbnail);
+        assertEquals("[Artist] Title with \"quotes\" [Chinese] [無修正]", card.title);
+    }
+
+    @Test
+    public void pageWithoutContentIsLeftToJsoup() throws IOException {
+        assertNull(SearchPageScanner.scan(new StringReader(load("challenge.html"))));
+    }
+
+    @Test
+    public void incompleteCardIsLeftToJsoup() throws IOException {
+        String html = load("search.html").replaceFirst("<div class=\"caption\">", "<span class=\"caption\">");
+        assertNull(SearchPageScanner.scan(new StringReader(html)));
+    }
+
+    @Test
+    public void pageLeftToJsoupIsKeptWhole() throws IOException {
+        String html = load("search.html").replaceFirst("<div class=\"caption\">", "<span class=\"caption\">");
+        for (int size : new int[]{1, 64, 8191}) {
+            SearchPageScanner scanner = new SearchPageScanner(new ChunkedReader(html, size));
+            assertNull(scanner.scan());
+            assertEquals("read by " + size, html, scanner.getPage());
+        }
+    }
+
+    /**
+     * Hands out at most size characters at every read, like a slow network
+     */
+    private static final class ChunkedReader extends Reader {
+        private final String text;
+        private final int size;
+        private int position;
+
+        ChunkedReader(String text, int size) {
+            this.text = text;
+            this.size = size;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position >= text.length()) return -1;
+            int count = Math.min(Math.min(length, size), text.length() - position);
+            text.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}